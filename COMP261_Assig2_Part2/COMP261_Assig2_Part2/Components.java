@@ -1,9 +1,6 @@
-import java.util.List;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.HashSet;
 
 //=============================================================================
 //   Finding Components
@@ -13,61 +10,108 @@ import java.util.HashSet;
 
 public class Components{
 
-    // Based on Kosaraju's_algorithm
-    // https://en.wikipedia.org/wiki/Kosaraju%27s_algorithm
-    // Use a visited set to record which stops have been visited
+    // Based on Pearce's space-efficient version of Tarjan's algorithm
+    // https://en.wikipedia.org/wiki/Tarjan%27s_strongly_connected_components_algorithm
+    // D. J. Pearce, "A space-efficient algorithm for finding strongly connected components" (2016)
+    //
+    // The stops are numbered 0..n-1 and their outgoing edges are copied into int arrays,
+    // so the search only needs the edgesOut (one pass, no transposed graph) and never
+    // looks up a Stop in a set or map.
+    // The depth first search keeps its own stack of stops (rather than recursing), so
+    // long chains of stops can't overflow the Java stack.
+    // Each stop needs just one number, rindex: while the stop is being searched it is the
+    // lowest visit number it can reach, and once its component is finished it is the
+    // number of the component (counting down from n-1, so always above any visit number).
 
-    
     public static Map<Stop,Integer> findComponents(Graph graph) {
-        Set<Stop> visited = new HashSet<>(); // Set to track visited stops
-        List<Stop> postOrder = new ArrayList<>(); // List to store stops in post-order of DFS
-        
-        // Step 1: Perform DFS to compute post-order on the original graph
-        for(Stop stop : graph.getStops()){
-            if(!visited.contains(stop)){
-                dfsPostOrder(stop, visited, postOrder);
-            }
+        Collection<Stop> stopList = graph.getStops();
+        int n = stopList.size();
+
+        // Step 1: Number the stops (the map is reused for the components at the end)
+        Stop[] stops = new Stop[n];
+        Map<Stop, Integer> components = new HashMap<>(2 * n);
+        int numEdges = 0;
+        for (Stop stop : stopList){
+            components.put(stop, components.size());
+            stops[components.size() - 1] = stop;
+            numEdges += stop.getEdgesOut().size();
         }
-        
-        // Step 2: Cleat the visited set for reuse in the second DFS
-        visited.clear();
-        Map<Stop, Integer> components = new HashMap<>(); // Map to associate each stop with a component ID
-        int componentId = 0; // Component ID initilisation
-        
-        //Step 3: Process stops in reverse post-order to identify components in the transposed graph
-        for(int i = postOrder.size() - 1; i >= 0; i--){
-            Stop stop = postOrder.get(i);
-            if(!visited.contains(stop)){
-                // Start a DFS from this unvisited node in the transposed graph
-                dfsAssignComponent(stop, visited, components, componentId);
-                componentId++; // Increment component ID for the next SCC
+
+        // Step 2: Copy the outgoing edges: the neighbours of stop v are
+        //  target[firstOut[v]] .. target[firstOut[v+1]-1]
+        int[] firstOut = new int[n + 1];
+        int[] target = new int[numEdges];
+        int e = 0;
+        for (int v = 0; v < n; v++){
+            firstOut[v] = e;
+            for (Edge edge : stops[v].getEdgesOut()){
+                Integer to = components.get(edge.toStop());
+                if (to != null){ target[e++] = to; }   // ignore edges to stops not in the graph
             }
         }
-        
-        return components; // Returning the map of stops to their corresponding IDs
-    }
-    
-    // Helper method to perform DFS and fill postOrder list
-    public static void dfsPostOrder(Stop current, Set<Stop> visited, List<Stop> postOrder){
-        visited.add(current); // Mark the current stop as visited
-        for(Edge edge: current.getEdgesOut()){ // Traverse all outgoing edges
-            Stop neighbour = edge.toStop(); // Get the destination stop of the edge
-            if(!visited.contains(neighbour)){
-                dfsPostOrder(neighbour, visited, postOrder); // Recursive DFS call
+        firstOut[n] = e;
+
+        // Step 3: Depth first search from each unvisited stop
+        int[] rindex = new int[n];       // 0 if not visited yet
+        boolean[] root = new boolean[n]; // whether a stop is still the root of its component
+        int[] nextEdge = new int[n];     // the next edge to follow from each stop on the call stack
+        // the call stack grows down from the top of the array, and the stack of stops waiting
+        // for their component grows up from the bottom (a stop is never on both)
+        int[] stack = new int[n];
+        int waiting = 0;                 // size of the stack of waiting stops
+        int index = 1;                   // next visit number
+        int component = n - 1;           // next component number
+
+        for (int start = 0; start < n; start++){
+            if (rindex[start] != 0){ continue; }
+            int call = n;                // top of the call stack
+            stack[--call] = start;
+            rindex[start] = index++;
+            root[start] = true;
+            nextEdge[start] = firstOut[start];
+            while (call < n){
+                int v = stack[call];
+                if (nextEdge[v] < firstOut[v + 1]){
+                    int w = target[nextEdge[v]];
+                    if (rindex[w] == 0){
+                        // visit w; the edge is looked at again once w is finished
+                        stack[--call] = w;
+                        rindex[w] = index++;
+                        root[w] = true;
+                        nextEdge[w] = firstOut[w];
+                        continue;
+                    }
+                    if (rindex[w] < rindex[v]){  // w reaches a stop visited before v
+                        rindex[v] = rindex[w];
+                        root[v] = false;
+                    }
+                    nextEdge[v]++;
+                }
+                else {
+                    // all the edges of v are done
+                    call++;
+                    if (root[v]){
+                        // v and the waiting stops visited after it make a component
+                        index--;
+                        while (waiting > 0 && rindex[v] <= rindex[stack[waiting - 1]]){
+                            rindex[stack[--waiting]] = component;
+                            index--;
+                        }
+                        rindex[v] = component;
+                        component--;
+                    }
+                    else {
+                        stack[waiting++] = v;
+                    }
+                }
             }
         }
-        postOrder.add(current); // Add stop to list after visting all descendents
-    }
-    
-    // Helper method to assign component IDs in the transposed graph
-    public static void dfsAssignComponent(Stop current, Set<Stop> visited, Map<Stop, Integer> components, int id){
-        visited.add(current); // Mark the stop as visited
-        components.put(current, id); // Assign the current stop to a component
-        for(Edge edge: current.getEdgesIn()){ // Traverse all incoming edges (transposed graph)
-            Stop neighbour = edge.fromStop(); // Get the source stop of the edge (reverse direction)
-            if(!visited.contains(neighbour)){
-                dfsAssignComponent(neighbour, visited, components, id); // Recursive DFS call
-            }
+
+        // Step 4: Number the components from 0, in the order of the graph
+        //  (a component only has edges to components with higher numbers)
+        for (int v = 0; v < n; v++){
+            components.put(stops[v], rindex[v] - component - 1);
         }
+        return components; // Returning the map of stops to their corresponding IDs
     }
 }
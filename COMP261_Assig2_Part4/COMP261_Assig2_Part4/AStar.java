@@ -8,107 +8,411 @@
  */
 
 import java.util.Collections;
-import java.util.Collection;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.HashMap;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Queue;
-import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
 
 
 
 public class AStar {
 
+    public static final int WAIT_PENALTY = 600; // seconds of waiting when changing lines or transport types
+
+    public static final long NO_TIME_LIMIT = Long.MAX_VALUE;     // time budget of an unbounded search
+    public static final int NO_SETTLED_LIMIT = Integer.MAX_VALUE; // settled stops budget of an unbounded search
+    private static final int CHECK_INTERVAL = 16;  // settled stops between checks of the clock and the token
+
+    // where the searches record their work, or null when it is not being recorded
+    private static volatile SearchStats stats = null;
+
+    /**
+     * Start recording the work done by every search in the given statistics
+     * (or stop recording, if it is null)
+     */
+    public static void setStats(SearchStats searchStats) {
+        stats = searchStats;
+    }
+
+    /** The statistics the searches are recorded in (null if they are not being recorded) */
+    public static SearchStats getStats() {
+        return stats;
+    }
+
     /**
      * Finds the shortest path between two stops
+     * The search is done on the compact snapshot of the graph that the stops are in.
      */
     public static List<Edge> findShortestPath(Stop start, Stop goal) {
-        Map<Stop, Edge> backPointer = new HashMap<>(); // Stores the backpointers of each best edge
-        Map<Stop, Double> costSoFar = new HashMap<>(); // Stores the cheapest known cost to get to each Stop
-        Queue<SearchQueueItem> fringe = new PriorityQueue<>(); // Stores Stops to explore, prioitised by estimated total cost
-        Set<Stop> visited = new HashSet<>();
-        fringe.add(new SearchQueueItem(start, null, 0, 0, estimateTime(start, goal))); // Adding the start node to the fringe with heuristic cost (h(n))
-        costSoFar.put(start, 0.0); // Initializing the cost 
-        if (start == null || goal == null){
-            return null; // Return null if start or goal is invalid
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null){
+            return null; // Return null if start or goal is invalid, or they are not in the same graph
         }
         if (start.equals(goal)){
             return Collections.emptyList(); // Return empty path if start equals goal
-        } 
+        }
+        return findShortestPath(graph.freeze(), start.getIndex(), goal.getIndex());
+    }
+
+    /**
+     * Finds the shortest path between two stops, within a budget
+     * (see findShortestPath(GraphSnapshot, int, int, long, int, CancellationToken))
+     */
+    public static SearchResult findShortestPath(Stop start, Stop goal, long timeBudgetMillis, int maxSettled,
+                                                CancellationToken token) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null){
+            return SearchResult.notFound();
+        }
+        return findShortestPath(graph.freeze(), start.getIndex(), goal.getIndex(),
+                                timeBudgetMillis, maxSettled, token);
+    }
+
+    /**
+     * Finds the shortest path between two stops (given by their indexes) in a graph snapshot.
+     * Returns null if there is no path.
+     * The search only uses primitive arrays in a SearchSpace that is reused from one
+     * search to the next, and an indexed heap in which a stop's priority is lowered
+     * (rather than adding another queue entry), so the only allocation is the returned path.
+     * The heuristic is the landmark (ALT) lower bound, which is admissible, once the
+     * snapshot's landmark tables are built; until then (eg, just after the walking distance
+     * changed) it is the train speed estimate, which is not admissible, since some edges
+     * are faster than the train speed.
+     */
+    public static List<Edge> findShortestPath(GraphSnapshot graph, int start, int goal) {
+        return findShortestPath(graph, start, goal, NO_TIME_LIMIT, NO_SETTLED_LIMIT, null).getPath();
+    }
+
+    /**
+     * Finds the shortest path between two stops (given by their indexes) in a graph snapshot,
+     * as above, but gives up when it has taken more than timeBudgetMillis, or settled
+     * maxSettled stops (BUDGET_EXCEEDED), or when the token is cancelled (CANCELLED),
+     * returning the best partial path found so far (see SearchResult).
+     * The settled stops are counted exactly; the clock and the token (which may be null)
+     * are checked every CHECK_INTERVAL settled stops.
+     * Use NO_TIME_LIMIT and NO_SETTLED_LIMIT for no limit.
+     * This search keeps one path per stop, so the costs on its fringe are not lower bounds
+     * on the cheapest path (see findShortestPathExact): the lower bound of a stopped search
+     * is just the landmark bound from the start to the goal (0 without the landmark tables).
+     */
+    public static SearchResult findShortestPath(GraphSnapshot graph, int start, int goal,
+                                                long timeBudgetMillis, int maxSettled, CancellationToken token) {
+        if (start == goal){
+            return SearchResult.found(Collections.emptyList()); // Return empty path if start equals goal
+        }
+        SearchStats searchStats = stats;  // read once, so the search is recorded all or nothing
+        boolean timed = timeBudgetMillis != NO_TIME_LIMIT;
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+        boolean clocked = timed || searchStats != null;
+        long startTime = clocked ? System.nanoTime() : 0;
+        int settled = 0, pushes = 0, decreaseKeys = 0, relaxations = 0;
+        SearchResult.Status status = null;
+        int best = start;  // the settled stop with the lowest estimate
+        SearchSpace space = SearchSpace.forThread(graph.numStops());
+        IndexedMinHeap fringe = space.fringe(); // Stores Stops to explore, prioitised by estimated total cost
+        GisPoint goalPoint = graph.getStop(goal).getPoint();
+        Landmarks landmarks = graph.landmarksIfBuilt();
+        double startEstimate = estimateTime(graph, landmarks, start, goal, goalPoint);
+        space.reach(start, 0.0, -1, startEstimate); // Initializing the cost 
+        fringe.offer(start, startEstimate); // Adding the start node to the fringe with heuristic cost (h(n))
+        pushes++;
         // Main loop for A* algorithm
         while(!fringe.isEmpty()){
+            status = checkBudget(settled, maxSettled, timed, startTime, budgetNanos, token);
+            if (status != null){
+                break; // Out of budget, or cancelled
+            }
             // Remove and process the Stop with the lowest estimated total cost
-            SearchQueueItem currentItem = fringe.poll();
-            Stop currentStop = currentItem.stop;
-            if(visited.contains(currentStop)){
-                continue; // Skip the stop if already visited
+            int current = fringe.poll();
+            space.settle(current);
+            settled++;
+            if(current == goal){
+                status = SearchResult.Status.FOUND; // Stop the search when goal is reached
+                break;
             }
-            visited.add(currentStop); // Add stop to visited set
-            if(currentStop.equals(goal)){
-                break; // Stop the search when goal is reached
+            if (space.estimate(current) < space.estimate(best)){
+                best = current;
             }
+            int prevEdge = space.backEdge(current);
+            double timeSoFar = space.cost(current);
+            relaxations += graph.endEdge(current) - graph.firstEdge(current);
             // Explore all neighbouring stops connected by its edges
-            for(Edge edge: currentStop.getEdgesOut()){
-                Stop neighbour = edge.toStop();
+            for(int edge = graph.firstEdge(current); edge < graph.endEdge(current); edge++){
+                int neighbour = graph.target(edge);
+                if (space.isSettled(neighbour)){
+                    continue; // Already have the best path to this stop
+                }
                 // Calculate potential wait time
-                int waitPenalty = shouldAddWaitPenalty(currentItem.fromEdge, edge) ? 600 : 0;
-                int edgeTravelTime = edge.getTravelTime();
-                int newTimeSoFar = currentItem.timeSoFar + waitPenalty + edgeTravelTime;
-                double newCost = newTimeSoFar; // Actual travel time as the cost // g(n)
+                int waitPenalty = shouldAddWaitPenalty(graph, prevEdge, edge) ? WAIT_PENALTY : 0;
+                double newCost = timeSoFar + waitPenalty + graph.travelTime(edge); // Actual travel time as the cost // g(n)
                 // Update the cost if its cheaper than the path found from previous edge
-                if(!costSoFar.containsKey(neighbour) || newCost < costSoFar.get(neighbour)){
-                    costSoFar.put(neighbour, newCost);
-                    double priority = newCost + estimateTime(neighbour, goal); // Total estimated cost: f(n) = g(n) + h(n)
-                    fringe.add(new SearchQueueItem(neighbour, edge, newCost, newTimeSoFar, priority)); // Add neighbour to fringe for further searching
-                    backPointer.put(neighbour, edge); // Record the best known edge towards this neighbour
+                if (!space.isReached(neighbour)){
+                    double estimate = estimateTime(graph, landmarks, neighbour, goal, goalPoint);
+                    space.reach(neighbour, newCost, edge, estimate);
+                    fringe.offer(neighbour, newCost + estimate); // Total estimated cost: f(n) = g(n) + h(n)
+                    pushes++;
+                }
+                else if(newCost < space.cost(neighbour)){
+                    space.improve(neighbour, newCost, edge); // Record the best known edge towards this neighbour
+                    fringe.offer(neighbour, newCost + space.estimate(neighbour)); // lowers its priority
+                    decreaseKeys++;
                 }
             }
         }
-        // Reconstruct the path from goal to start using the backpointers
-        return reconstructPath(start, goal, backPointer);
+        if (status == null) {
+            status = SearchResult.Status.NOT_FOUND; // goal was not reachable
+        }
+        long elapsed = clocked ? System.nanoTime() - startTime : 0;
+        if (searchStats != null) {
+            // the heuristic is evaluated once for each stop pushed
+            searchStats.record(settled, pushes, decreaseKeys, relaxations, pushes, elapsed);
+        }
+        switch (status) {
+            case FOUND:
+                List<Edge> path = reconstructPath(graph, start, goal, space);
+                return new SearchResult(status, path, null, space.cost(goal), settled, elapsed);
+            case NOT_FOUND:
+                return new SearchResult(status, null, null, Double.POSITIVE_INFINITY, settled, elapsed);
+            default:
+                double lowerBound = (landmarks == null) ? 0 : landmarks.lowerBound(start, goal);
+                return new SearchResult(status, null, reconstructPath(graph, start, best, space),
+                                        lowerBound, settled, elapsed);
+        }
     }
     
+    /**
+     * Finds the shortest path between two stops, exactly under the wait penalty rules
+     * (see findShortestPathExact(GraphSnapshot, int, int))
+     */
+    public static List<Edge> findShortestPathExact(Stop start, Stop goal) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null){
+            return null;
+        }
+        if (start.equals(goal)){
+            return Collections.emptyList();
+        }
+        return findShortestPathExact(graph.freeze(), start.getIndex(), goal.getIndex());
+    }
+
+    /**
+     * Finds the shortest path between two stops exactly, within a budget
+     * (see findShortestPathExact(GraphSnapshot, int, int, long, int, CancellationToken))
+     */
+    public static SearchResult findShortestPathExact(Stop start, Stop goal, long timeBudgetMillis, int maxSettled,
+                                                     CancellationToken token) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null){
+            return SearchResult.notFound();
+        }
+        return findShortestPathExact(graph.freeze(), start.getIndex(), goal.getIndex(),
+                                     timeBudgetMillis, maxSettled, token);
+    }
+
+    /**
+     * Finds the shortest path between two stops (given by their indexes) in a graph snapshot,
+     * searching over (stop, line or transport type arrived on) instead of stops alone.
+     * Returns null if there is no path.
+     * The search above records one path per stop, so a cheaper arrival on a line that
+     * needs a wait penalty to go on can shut out a dearer arrival on the line that goes on
+     * for free, and the path it finds can be more than the cheapest. Here each of those
+     * arrivals is a separate state of the StateGraph (an int: the stops, then one state for
+     * each distinct (stop, line) pair), so the costs are exact, and the SearchSpace
+     * only needs one entry per state.
+     * The heuristic is just the landmark lower bound, since some edges are faster than
+     * the train speed, which would make the estimate too high on those states; until the
+     * snapshot's landmark tables are built there is no heuristic (it is Dijkstra's algorithm).
+     */
+    public static List<Edge> findShortestPathExact(GraphSnapshot graph, int start, int goal) {
+        return findShortestPathExact(graph, start, goal, NO_TIME_LIMIT, NO_SETTLED_LIMIT, null).getPath();
+    }
+
+    /**
+     * Finds the shortest path between two stops (given by their indexes) in a graph snapshot
+     * exactly, as above, but within a time and settled states budget, and cancellable
+     * (see findShortestPath(GraphSnapshot, int, int, long, int, CancellationToken)).
+     * Since the heuristic is admissible, the lower bound of a stopped search is a true
+     * lower bound on the cost of the shortest path.
+     */
+    public static SearchResult findShortestPathExact(GraphSnapshot graph, int start, int goal,
+                                                     long timeBudgetMillis, int maxSettled, CancellationToken token) {
+        if (start == goal){
+            return SearchResult.found(Collections.emptyList());
+        }
+        SearchStats searchStats = stats;  // read once, so the search is recorded all or nothing
+        boolean timed = timeBudgetMillis != NO_TIME_LIMIT;
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+        boolean clocked = timed || searchStats != null;
+        long startTime = clocked ? System.nanoTime() : 0;
+        SearchResult.Status status = null;
+        StateGraph states = graph.getStateGraph();
+        Landmarks landmarks = graph.landmarksIfBuilt();
+        StateSearch.Estimate estimate = (landmarks == null) ? StateSearch.NO_ESTIMATE
+            : (int state) -> landmarks.lowerBound(states.stopOf(state), goal);
+        StateSearch search = new StateSearch(states, SearchSpace.forThread(states.numStates()), false,
+                                             StateSearch.ALL_ARCS, estimate);
+        // the journey can start on any of the edges at the start stop, with no penalty
+        for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+            search.seed(x, 0.0);
+        }
+        int target = states.hub(goal);
+        int best = -1;  // the settled state with the lowest estimate
+        while (!search.isEmpty()) {
+            status = checkBudget(search.numSettled(), maxSettled, timed, startTime, budgetNanos, token);
+            if (status != null) {
+                break;
+            }
+            int current = search.settleNext();
+            if (current == target) {
+                status = SearchResult.Status.FOUND;
+                break;
+            }
+            if (best < 0 || search.space().estimate(current) < search.space().estimate(best)) {
+                best = current;
+            }
+            search.relax(current);
+        }
+        if (status == null) {
+            status = SearchResult.Status.NOT_FOUND; // goal was not reachable
+        }
+        long elapsed = clocked ? System.nanoTime() - startTime : 0;
+        int settled = search.numSettled();
+        if (searchStats != null) {
+            searchStats.record(settled, search.numPushes(), search.numDecreaseKeys(), search.numRelaxations(),
+                               search.numEstimates(), elapsed);
+        }
+        switch (status) {
+            case FOUND:
+                return new SearchResult(status, edgeList(graph, search.pathEdges(target)), null,
+                                        search.cost(target), settled, elapsed);
+            case NOT_FOUND:
+                return new SearchResult(status, null, null, Double.POSITIVE_INFINITY, settled, elapsed);
+            default:
+                List<Edge> partialPath = (best < 0) ? new ArrayList<Edge>() : edgeList(graph, search.pathEdges(best));
+                return new SearchResult(status, null, partialPath, search.peekPriority(), settled, elapsed);
+        }
+    }
+
+    /**
+     * Whether a search should stop: BUDGET_EXCEEDED if it has settled maxSettled stops,
+     * or (checked every CHECK_INTERVAL settled stops) has run out of time;
+     * CANCELLED if its token has been cancelled; otherwise null
+     * (also used by the PathReplanner, counting the states it expands)
+     */
+    static SearchResult.Status checkBudget(int settled, int maxSettled, boolean timed, long startTime,
+                                                   long budgetNanos, CancellationToken token) {
+        if (settled >= maxSettled) {
+            return SearchResult.Status.BUDGET_EXCEEDED;
+        }
+        if (settled % CHECK_INTERVAL != 0) {
+            return null;
+        }
+        if (token != null && token.isCancelled()) {
+            return SearchResult.Status.CANCELLED;
+        }
+        if (timed && System.nanoTime() - startTime > budgetNanos) {
+            return SearchResult.Status.BUDGET_EXCEEDED;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the shortest path between the stops closest to two locations
+     * (eg, locations clicked on the map, or given by a user)
+     */
+    public static List<Edge> findShortestPath(Graph graph, GisPoint from, GisPoint to) {
+        return findShortestPath(graph.findClosestStop(from), graph.findClosestStop(to));
+    }
+
     /**
      * Reconstructs the shortest path by using the back pointers
      */
-    private static List<Edge> reconstructPath(Stop start, Stop goal, Map<Stop, Edge> backPointer){
+    private static List<Edge> reconstructPath(GraphSnapshot graph, int start, int goal, SearchSpace space){
         List<Edge> shortestPath = new ArrayList<>();  // Store the final path of edges from start to goal
-        Stop current = goal; // Start from goal
-        while(!current.equals(start)){
-            Edge edge = backPointer.get(current);
+        int current = goal; // Start from goal
+        while(current != start){
+            Edge edge = graph.getEdge(space.backEdge(current));
             shortestPath.add(edge);
-            current = edge.fromStop(); // Move backwards along the path
+            current = edge.fromStop().getIndex(); // Move backwards along the path
         }
         Collections.reverse(shortestPath); // Reverse the reconstructed path 
         return shortestPath;
     }
+
+    /**
+     * The Edges of a path given as snapshot edge numbers (eg, from StateSearch.pathEdges)
+     */
+    public static List<Edge> edgeList(GraphSnapshot graph, int[] edges) {
+        List<Edge> path = new ArrayList<>(edges.length);
+        for (int edge : edges) {
+            path.add(graph.getEdge(edge));
+        }
+        return path;
+    }
+
     /**
      * Helper method to determine if a wait penalty should be applied when transiting transport types and/or lines
+     * prev and next are edge numbers in the graph snapshot (prev is -1 for the first move)
      */
+    public static boolean shouldAddWaitPenalty(GraphSnapshot graph, int prev, int next) {
+        if (prev < 0) return false; // No penalty for the first move
+        byte prevType = graph.typeCode(prev);
+        byte nextType = graph.typeCode(next);
+        if (prevType != nextType) {
+            return true; // Walking → transport, or switching transport types
+        }
+        int prevLine = graph.lineId(prev);
+        int nextLine = graph.lineId(next);
+        return prevLine != GraphSnapshot.NO_LINE && nextLine != GraphSnapshot.NO_LINE && prevLine != nextLine; // Same mode, different line
+    }
     
-    private static boolean shouldAddWaitPenalty(Edge prev, Edge next) {
+    /**
+     * The same wait penalty rule, for the edges of a path that has already been found
+     * (prev is null for the first move)
+     */
+    public static boolean shouldAddWaitPenalty(Edge prev, Edge next) {
         if (prev == null) return false; // No penalty for the first move
-        if (prev.transpType().equals("walking") && !next.transpType().equals("walking")) {
-            return true; // Walking → transport
-        }
         if (!prev.transpType().equals(next.transpType())) {
-            return true; // Switching transport types (e.g. Bus → Train)
+            return true; // Walking → transport, or switching transport types
         }
-        if (prev.line() != null && next.line() != null && !prev.line().equals(next.line())) {
-            return true; // Same mode, different line
+        return prev.line() != null && next.line() != null && prev.line() != next.line(); // Same mode, different line
+    }
+
+    /**
+     * The cost of a path that the search minimises: the total travel time in seconds,
+     * including the wait penalties
+     */
+    public static int pathTime(List<Edge> path) {
+        int time = 0;
+        Edge prev = null;
+        for (Edge edge : path) {
+            time += edge.getTravelTime();
+            if (shouldAddWaitPenalty(prev, edge)) {
+                time += WAIT_PENALTY;
+            }
+            prev = edge;
         }
-        return false;
+        return time;
     }
-    
+
     /**
      * For Part 4: New heuristic helper method of getting the time between two stops based on train speed
      */
-    private static double estimateTime(Stop from, Stop to){
-        double dist = from.distanceTo(to);
+    private static double estimateTime(GisPoint from, GisPoint to){
+        double dist = from.distance(to);
         return dist / Transport.TRAIN_SPEED_MPS;
     }
+
+    /**
+     * The heuristic used by the search: the landmark lower bound from the stop to the goal,
+     * or the train speed estimate if the landmark tables aren't built (landmarks is null).
+     * (The larger of the two settles no fewer stops than the landmark bound alone on
+     * data-full, and the train speed estimate is not admissible.)
+     */
+    private static double estimateTime(GraphSnapshot graph, Landmarks landmarks, int stop, int goal, GisPoint goalPoint){
+        if (landmarks == null) {
+            return estimateTime(graph.getStop(stop).getPoint(), goalPoint);
+        }
+        return landmarks.lowerBound(stop, goal);
+    }
 }
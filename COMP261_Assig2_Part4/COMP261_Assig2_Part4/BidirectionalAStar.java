@@ -0,0 +1,167 @@
+/**
+ * A bidirectional version of the A* search: one search runs forwards from the start
+ *  and another runs backwards from the goal, until they meet.
+ * Like AStar, it returns null if start or goal are null or there is no path,
+ *  an empty path if start and goal are the same, and otherwise a list of Edges
+ *  from the start to the goal.
+ *
+ * The searches run over the StateGraph of the snapshot (so the wait penalties are
+ *  arc costs and the path is exact), and the backward search follows the arcs into
+ *  each state. Both searches use the average potential
+ *     p(v) = (h(v, goal) - h(start, v)) / 2
+ *  (the forward search adds p(v), the backward search subtracts it), where h is the
+ *  landmark lower bound. (The train speed estimate is not used, as some edges are
+ *  faster than TRAIN_SPEED_MPS, which would make the potentials inconsistent.)
+ *  Since the two potentials add to zero, the searches are consistent with each other, and the
+ *  shortest path is found as soon as the smallest keys of the two fringes add up
+ *  to at least the cost of the best path found so far.
+ */
+
+import java.util.Collections;
+
+import java.util.List;
+import java.util.ArrayList;
+
+public class BidirectionalAStar {
+
+    private static final ThreadLocal<SearchSpace[]> PER_THREAD =
+        ThreadLocal.withInitial(() -> new SearchSpace[]{new SearchSpace(0), new SearchSpace(0)});
+
+    /**
+     * Finds the shortest path between two stops
+     */
+    public static List<Edge> findShortestPath(Stop start, Stop goal) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null){
+            return null;
+        }
+        if (start.equals(goal)){
+            return Collections.emptyList();
+        }
+        return findShortestPath(graph.freeze(), start.getIndex(), goal.getIndex());
+    }
+
+    /**
+     * Finds the shortest path between two stops (given by their indexes) in a graph snapshot.
+     * Returns null if there is no path.
+     */
+    public static List<Edge> findShortestPath(GraphSnapshot graph, int start, int goal) {
+        if (start == goal){
+            return Collections.emptyList();
+        }
+        StateGraph states = graph.getStateGraph();
+        Landmarks landmarks = graph.getLandmarks();
+        SearchSpace[] pair = PER_THREAD.get();
+        SearchSpace forward = pair[0];
+        SearchSpace backward = pair[1];
+        forward.startSearch(states.numStates());
+        backward.startSearch(states.numStates());
+        IndexedMinHeap forwardFringe = forward.fringe();
+        IndexedMinHeap backwardFringe = backward.fringe();
+
+        // the journey can start on any of the edges at the start stop, with no penalty
+        double startPotential = potential(landmarks, start, goal, start);
+        for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+            forward.reach(x, 0, -1, startPotential);
+            forwardFringe.offer(x, startPotential);
+        }
+        int target = states.hub(goal);
+        double targetPotential = -potential(landmarks, start, goal, goal);
+        backward.reach(target, 0, -1, targetPotential);
+        backwardFringe.offer(target, targetPotential);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        while (!forwardFringe.isEmpty() && !backwardFringe.isEmpty()
+               && forwardFringe.peekPriority() + backwardFringe.peekPriority() < best) {
+            if (forwardFringe.size() <= backwardFringe.size()) {
+                // expand the forward search
+                int current = forwardFringe.poll();
+                forward.settle(current);
+                double costSoFar = forward.cost(current);
+                for (int arc = states.firstArc(current); arc < states.endArc(current); arc++) {
+                    int next = states.arcTarget(arc);
+                    double newCost = costSoFar + states.arcCost(arc);
+                    if (reach(forward, next, newCost, arc, landmarks, start, goal, states, 1)
+                        && backward.isReached(next) && newCost + backward.cost(next) < best) {
+                        best = newCost + backward.cost(next);
+                        meet = next;
+                    }
+                }
+            }
+            else {
+                // expand the backward search
+                int current = backwardFringe.poll();
+                backward.settle(current);
+                double costSoFar = backward.cost(current);
+                for (int i = states.firstInArc(current); i < states.endInArc(current); i++) {
+                    int arc = states.inArc(i);
+                    int prev = states.arcSource(arc);
+                    double newCost = costSoFar + states.arcCost(arc);
+                    if (reach(backward, prev, newCost, arc, landmarks, start, goal, states, -1)
+                        && forward.isReached(prev) && newCost + forward.cost(prev) < best) {
+                        best = newCost + forward.cost(prev);
+                        meet = prev;
+                    }
+                }
+            }
+        }
+        if (meet < 0) {
+            return null; // goal was not reachable
+        }
+        return reconstructPath(states, forward, backward, meet);
+    }
+
+    /**
+     * Record a path of the given cost to a state in one of the searches (sign is 1 for
+     * the forward search and -1 for the backward search), if it is the first or a cheaper one.
+     * @return true if the path was recorded
+     */
+    private static boolean reach(SearchSpace space, int state, double cost, int arc,
+                                 Landmarks landmarks, int start, int goal, StateGraph states, int sign) {
+        if (space.isSettled(state)) {
+            return false; // Already have the best path to this state
+        }
+        if (!space.isReached(state)) {
+            double potential = sign * potential(landmarks, start, goal, states.stopOf(state));
+            if (Double.isNaN(potential) || potential == Double.POSITIVE_INFINITY) {
+                return false; // the landmarks show it can't be on a path from start to goal
+            }
+            space.reach(state, cost, arc, potential);
+            space.fringe().offer(state, cost + potential);
+            return true;
+        }
+        if (cost < space.cost(state)) {
+            space.improve(state, cost, arc);
+            space.fringe().offer(state, cost + space.estimate(state));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The average potential of a stop for the forward search
+     */
+    private static double potential(Landmarks landmarks, int start, int goal, int stop) {
+        return (landmarks.lowerBound(stop, goal) - landmarks.lowerBound(start, stop)) / 2;
+    }
+
+    /**
+     * Reconstructs the path from the back pointers of the forward search (from the
+     * meeting state back to the start) and of the backward search (on to the goal)
+     */
+    private static List<Edge> reconstructPath(StateGraph states, SearchSpace forward, SearchSpace backward, int meet) {
+        GraphSnapshot graph = states.getSnapshot();
+        List<Edge> path = new ArrayList<>();
+        for (int x = meet; forward.backEdge(x) >= 0; x = states.arcSource(forward.backEdge(x))) {
+            int edge = states.arcEdge(forward.backEdge(x));
+            if (edge != StateGraph.NO_EDGE) { path.add(graph.getEdge(edge)); }
+        }
+        Collections.reverse(path);
+        for (int x = meet; backward.backEdge(x) >= 0; x = states.arcTarget(backward.backEdge(x))) {
+            int edge = states.arcEdge(backward.backEdge(x));
+            if (edge != StateGraph.NO_EDGE) { path.add(graph.getEdge(edge)); }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * A flag for cancelling a search from another thread (eg when the request the search
+ *  is for has been abandoned). A bounded search (see AStar) checks the token every
+ *  few stops it settles, and stops with the status CANCELLED once it has been cancelled.
+ * A token can be shared by several searches, to cancel them all at once.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled = false;
+
+    /** Cancel the searches using this token (a search that has finished is not affected) */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
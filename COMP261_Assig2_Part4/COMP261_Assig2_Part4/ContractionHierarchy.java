@@ -0,0 +1,460 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A contraction hierarchy over the StateGraph of a snapshot, for fast exact
+ *  stop-to-stop queries with travel time (plus wait penalties) as the cost.
+ *
+ * Preprocessing contracts the states one at a time, cheapest first, where the
+ *  priority of a state is its edge difference (the number of shortcuts that
+ *  contracting it would add, less the number of arcs it would remove) plus the
+ *  number of its neighbours already contracted (to spread the contraction evenly).
+ * Contracting state v adds a shortcut u -> w for each pair of arcs u -> v -> w
+ *  unless a short (limited) witness search finds a path from u to w that avoids v
+ *  and is no longer. Each shortcut remembers the two arcs it replaces, so a path
+ *  can be unpacked into the original edges.
+ *
+ * A query runs Dijkstra's algorithm forwards from the start and backwards from the
+ *  goal, each only following arcs towards states contracted later, and stops when
+ *  neither search can improve on the best meeting point found so far.
+ *  States that are reached more cheaply from above than by the upward search
+ *  are not expanded (stall on demand).
+ * The result is an exact shortest path under the wait penalty rules (see StateGraph),
+ *  so its cost is never more than that of the path found by AStar.
+ *
+ * The hierarchy belongs to one GraphSnapshot (see GraphSnapshot.getContractionHierarchy()),
+ *  so it is rebuilt when the walking edges change.
+ */
+public class ContractionHierarchy {
+
+    private static final int WITNESS_SETTLE_LIMIT = 100; // states a witness search may settle
+    private static final int NO_ARC = -1;
+
+    private final StateGraph states;
+    private final int[] rank;       // order in which each state was contracted
+
+    // all the arcs: the original arcs of the state graph and the shortcuts
+    private int numArcs = 0;
+    private int[] arcFrom = new int[1024];
+    private int[] arcTo = new int[1024];
+    private int[] arcCost = new int[1024];
+    private int[] arcFirst = new int[1024];   // first arc replaced by a shortcut (NO_ARC for original arcs)
+    private int[] arcSecond = new int[1024];  // second arc replaced by a shortcut
+    private int[] arcEdge = new int[1024];    // snapshot edge of an original arc (StateGraph.NO_EDGE if none)
+
+    // The search graphs, with the states numbered from the last contracted (node 0)
+    // to the first, so the states that most searches reach are close together in memory.
+    // Each arc is stored with the node at its other end, its cost, and its arc number.
+    private final int[] nodeOf;      // node number of each state
+    private final int[] upStart;     // arcs up from node x are upStart[x] .. upStart[x+1]-1
+    private final int[] upTarget;
+    private final int[] upCost;
+    private final int[] upArc;
+    private final int[] downStart;   // arcs down into node x are downStart[x] .. downStart[x+1]-1
+    private final int[] downSource;
+    private final int[] downCost;
+    private final int[] downArc;
+
+    private final ThreadLocal<SearchSpace[]> spaces;
+
+    /**
+     * Build the contraction hierarchy for the state graph of a snapshot
+     */
+    public ContractionHierarchy(GraphSnapshot graph) {
+        states = graph.getStateGraph();
+        int numStates = states.numStates();
+        rank = new int[numStates];
+        new Contractor(numStates).contractAll();
+
+        nodeOf = new int[numStates];
+        for (int x = 0; x < numStates; x++) {
+            nodeOf[x] = numStates - 1 - rank[x];
+        }
+        // split the arcs into upward arcs (grouped by the start node)
+        // and downward arcs (grouped by the end node, for the backward search)
+        upStart = new int[numStates + 1];
+        downStart = new int[numStates + 1];
+        for (int a = 0; a < numArcs; a++) {
+            if (isUpward(a)) { upStart[nodeOf[arcFrom[a]] + 1]++; }
+            else { downStart[nodeOf[arcTo[a]] + 1]++; }
+        }
+        for (int x = 0; x < numStates; x++) {
+            upStart[x + 1] += upStart[x];
+            downStart[x + 1] += downStart[x];
+        }
+        upTarget = new int[upStart[numStates]];
+        upCost = new int[upStart[numStates]];
+        upArc = new int[upStart[numStates]];
+        downSource = new int[downStart[numStates]];
+        downCost = new int[downStart[numStates]];
+        downArc = new int[downStart[numStates]];
+        int[] nextUp = Arrays.copyOf(upStart, numStates);
+        int[] nextDown = Arrays.copyOf(downStart, numStates);
+        for (int a = 0; a < numArcs; a++) {
+            if (isUpward(a)) {
+                int i = nextUp[nodeOf[arcFrom[a]]]++;
+                upTarget[i] = nodeOf[arcTo[a]];
+                upCost[i] = arcCost[a];
+                upArc[i] = a;
+            }
+            else {
+                int i = nextDown[nodeOf[arcTo[a]]]++;
+                downSource[i] = nodeOf[arcFrom[a]];
+                downCost[i] = arcCost[a];
+                downArc[i] = a;
+            }
+        }
+        spaces = ThreadLocal.withInitial(() -> new SearchSpace[]{new SearchSpace(numStates), new SearchSpace(numStates)});
+    }
+
+    private boolean isUpward(int arc) {
+        return rank[arcTo[arc]] > rank[arcFrom[arc]];
+    }
+
+    public StateGraph getStateGraph() {return states;}
+
+    /** The number of arcs, including shortcuts */
+    public int numArcs() {return numArcs;}
+
+    //--------------------------------------------
+    //  Queries
+    //--------------------------------------------
+
+    /**
+     * Finds the shortest path between two stops, using the contraction hierarchy
+     * of the current snapshot of their graph (built the first time it is needed).
+     * Returns null if either stop is null or there is no path,
+     * and an empty path if they are the same stop.
+     */
+    public static List<Edge> findShortestPath(Stop start, Stop goal) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null){
+            return null;
+        }
+        if (start.equals(goal)){
+            return Collections.emptyList();
+        }
+        return graph.freeze().getContractionHierarchy().findShortestPath(start.getIndex(), goal.getIndex());
+    }
+
+    /**
+     * Finds the shortest path between two stops (by index), or null if there is no path
+     */
+    public List<Edge> findShortestPath(int start, int goal) {
+        if (start == goal){
+            return Collections.emptyList();
+        }
+        SearchSpace[] pair = spaces.get();
+        SearchSpace forward = pair[0];
+        SearchSpace backward = pair[1];
+        forward.startSearch(nodeOf.length);
+        backward.startSearch(nodeOf.length);
+        IndexedMinHeap forwardFringe = forward.fringe();
+        IndexedMinHeap backwardFringe = backward.fringe();
+
+        // the journey can start on any of the edges at the start stop, with no penalty
+        for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+            forward.reach(nodeOf[x], 0, NO_ARC, 0);
+            forwardFringe.offer(nodeOf[x], 0);
+        }
+        int target = nodeOf[states.hub(goal)];
+        backward.reach(target, 0, NO_ARC, 0);
+        backwardFringe.offer(target, 0);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        while (true) {
+            double minForward = forwardFringe.isEmpty() ? Double.POSITIVE_INFINITY : forwardFringe.peekPriority();
+            double minBackward = backwardFringe.isEmpty() ? Double.POSITIVE_INFINITY : backwardFringe.peekPriority();
+            if (Math.min(minForward, minBackward) >= best) {
+                break; // neither search can find a better meeting point (also stops when both are empty)
+            }
+            if (minForward <= minBackward) {
+                int current = forwardFringe.poll();
+                forward.settle(current);
+                double cost = forward.cost(current);
+                if (backward.isReached(current) && cost + backward.cost(current) < best) {
+                    best = cost + backward.cost(current);
+                    meet = current;
+                }
+                if (isStalled(forward, cost, downStart[current], downStart[current + 1], downSource, downCost)) {
+                    continue;
+                }
+                for (int i = upStart[current]; i < upStart[current + 1]; i++) {
+                    relax(forward, upTarget[i], cost + upCost[i], upArc[i]);
+                }
+            }
+            else {
+                int current = backwardFringe.poll();
+                backward.settle(current);
+                double cost = backward.cost(current);
+                if (forward.isReached(current) && cost + forward.cost(current) < best) {
+                    best = cost + forward.cost(current);
+                    meet = current;
+                }
+                if (isStalled(backward, cost, upStart[current], upStart[current + 1], upTarget, upCost)) {
+                    continue;
+                }
+                for (int i = downStart[current]; i < downStart[current + 1]; i++) {
+                    relax(backward, downSource[i], cost + downCost[i], downArc[i]);
+                }
+            }
+        }
+        if (meet < 0) {
+            return null; // goal was not reachable
+        }
+        return unpackPath(forward, backward, meet);
+    }
+
+    /**
+     * Stall on demand: a node can be skipped if a higher node that links to it
+     * (one of the arcs from..end, in the direction of the search) has been reached
+     * by a path that, with that link, is shorter than the path the search found
+     * (which only goes upwards), since then it can't be on a shortest path.
+     */
+    private static boolean isStalled(SearchSpace space, double cost, int from, int end, int[] nodes, int[] costs) {
+        for (int i = from; i < end; i++) {
+            if (space.cost(nodes[i]) + costs[i] < cost) { return true; }
+        }
+        return false;
+    }
+
+    private static void relax(SearchSpace space, int node, double cost, int arc) {
+        if (space.isSettled(node)) { return; }
+        if (!space.isReached(node)) {
+            space.reach(node, cost, arc, 0);
+            space.fringe().offer(node, cost);
+        }
+        else if (cost < space.cost(node)) {
+            space.improve(node, cost, arc);
+            space.fringe().offer(node, cost);
+        }
+    }
+
+    /**
+     * Follow the back pointers of both searches from the meeting node, and
+     * unpack the shortcuts on the way into the original edges.
+     */
+    private List<Edge> unpackPath(SearchSpace forward, SearchSpace backward, int meet) {
+        List<Integer> forwardArcs = new ArrayList<Integer>();
+        for (int x = meet; forward.backEdge(x) != NO_ARC; x = nodeOf[arcFrom[forward.backEdge(x)]]) {
+            forwardArcs.add(forward.backEdge(x));
+        }
+        Collections.reverse(forwardArcs);
+        List<Edge> path = new ArrayList<Edge>();
+        for (int arc : forwardArcs) {
+            unpack(arc, path);
+        }
+        for (int x = meet; backward.backEdge(x) != NO_ARC; x = nodeOf[arcTo[backward.backEdge(x)]]) {
+            unpack(backward.backEdge(x), path);
+        }
+        return path;
+    }
+
+    /** Add the original edges that an arc stands for to the path */
+    private void unpack(int arc, List<Edge> path) {
+        if (arcFirst[arc] != NO_ARC) {
+            unpack(arcFirst[arc], path);
+            unpack(arcSecond[arc], path);
+        }
+        else if (arcEdge[arc] != StateGraph.NO_EDGE) {
+            path.add(states.getSnapshot().getEdge(arcEdge[arc]));
+        }
+    }
+
+    //--------------------------------------------
+    //  Preprocessing
+    //--------------------------------------------
+
+    private int addArc(int from, int to, int cost, int first, int second, int edge) {
+        if (numArcs == arcFrom.length) {
+            int size = 2 * numArcs;
+            arcFrom = Arrays.copyOf(arcFrom, size);
+            arcTo = Arrays.copyOf(arcTo, size);
+            arcCost = Arrays.copyOf(arcCost, size);
+            arcFirst = Arrays.copyOf(arcFirst, size);
+            arcSecond = Arrays.copyOf(arcSecond, size);
+            arcEdge = Arrays.copyOf(arcEdge, size);
+        }
+        arcFrom[numArcs] = from;
+        arcTo[numArcs] = to;
+        arcCost[numArcs] = cost;
+        arcFirst[numArcs] = first;
+        arcSecond[numArcs] = second;
+        arcEdge[numArcs] = edge;
+        return numArcs++;
+    }
+
+    /**
+     * The working data for contracting the states: the arcs into and out of
+     * each state that has not been contracted yet (as lists of arc numbers).
+     * When a state is contracted its arcs are taken out of its neighbours' lists,
+     * so the lists only ever link states that are still to be contracted.
+     */
+    private class Contractor {
+        private final int numStates;
+        private final int[][] out;
+        private final int[] outSize;
+        private final int[][] in;
+        private final int[] inSize;
+        private final int[] contractedNeighbours;
+        private final SearchSpace witness;
+
+        Contractor(int numStates) {
+            this.numStates = numStates;
+            out = new int[numStates][];
+            outSize = new int[numStates];
+            in = new int[numStates][];
+            inSize = new int[numStates];
+            contractedNeighbours = new int[numStates];
+            witness = new SearchSpace(numStates);
+            for (int x = 0; x < numStates; x++) {
+                out[x] = new int[4];
+                in[x] = new int[4];
+            }
+            // the original arcs (keeping only the cheapest of any parallel arcs)
+            for (int x = 0; x < numStates; x++) {
+                for (int a = states.firstArc(x); a < states.endArc(x); a++) {
+                    int to = states.arcTarget(a);
+                    if (to == x) { continue; }
+                    int existing = findArc(x, to);
+                    if (existing == NO_ARC) {
+                        link(addArc(x, to, states.arcCost(a), NO_ARC, NO_ARC, states.arcEdge(a)));
+                    }
+                    else if (states.arcCost(a) < arcCost[existing]) {
+                        arcCost[existing] = states.arcCost(a);
+                        arcEdge[existing] = states.arcEdge(a);
+                    }
+                }
+            }
+        }
+
+        /** Contract all the states, in order of priority */
+        void contractAll() {
+            IndexedMinHeap queue = new IndexedMinHeap(numStates);
+            for (int x = 0; x < numStates; x++) {
+                queue.offer(x, priority(x));
+            }
+            int order = 0;
+            while (!queue.isEmpty()) {
+                int v = queue.poll();
+                // the priority may be out of date: if it has gone up, put it back
+                double prio = priority(v);
+                if (!queue.isEmpty() && prio > queue.peekPriority()) {
+                    queue.offer(v, prio);
+                    continue;
+                }
+                shortcuts(v, true);
+                rank[v] = order++;
+                for (int i = 0; i < outSize[v]; i++) { contractedNeighbours[arcTo[out[v][i]]]++; }
+                for (int i = 0; i < inSize[v]; i++) { contractedNeighbours[arcFrom[in[v][i]]]++; }
+                for (int i = 0; i < outSize[v]; i++) { unlinkIn(out[v][i]); }
+                for (int i = 0; i < inSize[v]; i++) { unlinkOut(in[v][i]); }
+            }
+        }
+
+        /** The edge difference of a state, plus the number of its neighbours already contracted */
+        private double priority(int v) {
+            return shortcuts(v, false) - (outSize[v] + inSize[v]) + contractedNeighbours[v];
+        }
+
+        /**
+         * Work out the shortcuts needed to contract v, and add them if add is true.
+         * @return the number of shortcuts needed
+         */
+        private int shortcuts(int v, boolean add) {
+            int count = 0;
+            for (int i = 0; i < inSize[v]; i++) {
+                int inArc = in[v][i];
+                int u = arcFrom[inArc];
+                int maxCost = 0;
+                for (int j = 0; j < outSize[v]; j++) {
+                    int w = arcTo[out[v][j]];
+                    if (w != u) { maxCost = Math.max(maxCost, arcCost[out[v][j]]); }
+                }
+                findWitnesses(u, v, arcCost[inArc] + maxCost);
+                for (int j = 0; j < outSize[v]; j++) {
+                    int outArc = out[v][j];
+                    int w = arcTo[outArc];
+                    if (w == u) { continue; }
+                    int cost = arcCost[inArc] + arcCost[outArc];
+                    if (witness.cost(w) <= cost) { continue; } // a path at least as short avoids v
+                    count++;
+                    if (add) {
+                        int existing = findArc(u, w);
+                        if (existing == NO_ARC) {
+                            link(addArc(u, w, cost, inArc, outArc, StateGraph.NO_EDGE));
+                        }
+                        else if (cost < arcCost[existing]) {
+                            // neither end has been contracted, so no shortcut refers to this arc yet
+                            arcCost[existing] = cost;
+                            arcFirst[existing] = inArc;
+                            arcSecond[existing] = outArc;
+                            arcEdge[existing] = StateGraph.NO_EDGE;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * A limited Dijkstra search from u over the states that are not contracted,
+         * avoiding v, up to the given cost. The costs are left in the witness search space.
+         */
+        private void findWitnesses(int u, int v, int maxCost) {
+            witness.startSearch(numStates);
+            IndexedMinHeap fringe = witness.fringe();
+            witness.reach(u, 0, NO_ARC, 0);
+            fringe.offer(u, 0);
+            int settled = 0;
+            while (!fringe.isEmpty() && fringe.peekPriority() <= maxCost && settled < WITNESS_SETTLE_LIMIT) {
+                int x = fringe.poll();
+                witness.settle(x);
+                settled++;
+                double cost = witness.cost(x);
+                for (int i = 0; i < outSize[x]; i++) {
+                    int arc = out[x][i];
+                    int y = arcTo[arc];
+                    if (y == v) { continue; }
+                    relax(witness, y, cost + arcCost[arc], arc);
+                }
+            }
+        }
+
+        private int findArc(int from, int to) {
+            for (int i = 0; i < outSize[from]; i++) {
+                if (arcTo[out[from][i]] == to) { return out[from][i]; }
+            }
+            return NO_ARC;
+        }
+
+        /** Remove an arc from the list of arcs into its end */
+        private void unlinkIn(int arc) {
+            int to = arcTo[arc];
+            for (int i = 0; i < inSize[to]; i++) {
+                if (in[to][i] == arc) { in[to][i] = in[to][--inSize[to]]; return; }
+            }
+        }
+
+        /** Remove an arc from the list of arcs out of its start */
+        private void unlinkOut(int arc) {
+            int from = arcFrom[arc];
+            for (int i = 0; i < outSize[from]; i++) {
+                if (out[from][i] == arc) { out[from][i] = out[from][--outSize[from]]; return; }
+            }
+        }
+
+        /** Add an arc to the lists of arcs out of its start and into its end */
+        private void link(int arc) {
+            int from = arcFrom[arc];
+            int to = arcTo[arc];
+            if (outSize[from] == out[from].length) { out[from] = Arrays.copyOf(out[from], 2 * outSize[from]); }
+            out[from][outSize[from]++] = arc;
+            if (inSize[to] == in[to].length) { in[to] = Arrays.copyOf(in[to], 2 * inSize[to]); }
+            in[to][inSize[to]++] = arc;
+        }
+    }
+}
@@ -3,11 +3,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 
 /**
@@ -27,19 +31,79 @@ public class Graph {
 
     private Collection<Stop> stops;
     private Collection<Line> lines;
-    private Collection<Edge> edges = new HashSet<Edge>();      // edges between Stops
+    private List<Edge> transitEdges = new ArrayList<Edge>();   // edges between Stops along lines
+    private List<Edge> walkingEdges = Collections.emptyList(); // the current walking edges between Stops
+
+    // spatial index over the locations of the stops, used for finding nearby stops
+    private SpatialGrid stopGrid;
+    private static final double GRID_CELL_SIZE = 250; // meters
+
+    // K-D tree over the locations of the stops, used for nearest stop queries
+    private StopKDTree stopTree;
+
+    // index of the stops by name, for looking up stops from a prefix of their name
+    private StopNameIndex nameIndex;
+
+    // compact copy of the edges for routing; null when the edges have changed since it was made
+    private GraphSnapshot snapshot = null;
+
+    // goes up every time the edges change (read by other threads, eg in the RouteCache)
+    private volatile long generation = 0;
+
+    // the paths found in the current generation of the graph
+    private final RouteCache routeCache = new RouteCache(this, RouteCache.DEFAULT_CAPACITY);
+
+    // repairs the last path it found when the walking edges change (made when first needed,
+    // possibly on another thread; see getReplanner)
+    private volatile PathReplanner replanner = null;
+    private final Object replannerLock = new Object();
+
+    // the stops in order of their index
+    private Stop[] stopArray;
+
+    // whether to build the graph (and the walking edges) in parallel
+    private final boolean parallel;
 
     /**
      * Construct a new graph given a collection of stops and a collection of lines.
      * Remove any stops that are not on any lines since they cannot be accessed from anywhere.
      */
     public Graph(Collection<Stop> stps, Collection<Line> lns) {
+        this(stps, lns, false);
+    }
+
+    /**
+     * Construct a new graph given a collection of stops and a collection of lines,
+     * optionally building it in parallel:
+     * the indexes of the stops are built while the lines are turned into edges
+     * on the common ForkJoin pool, and later the walking edges are found in parallel.
+     * The graph is exactly the same either way.
+     */
+    public Graph(Collection<Stop> stps, Collection<Line> lns, boolean parallel) {
+        this.parallel = parallel;
         stops = new TreeSet<Stop>(stps);
         stops.removeIf((Stop s) -> s.getLines().isEmpty());
+        stopArray = stops.toArray(new Stop[stops.size()]);
+        for (int index = 0; index < stopArray.length; index++) {
+            stopArray[index].setGraphIndex(this, index);
+        }
         
         lines = lns;
 
-        createAndConnectEdges();
+        if (parallel) {
+            CompletableFuture<Void> indexes = CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> stopGrid = new SpatialGrid(stops, GRID_CELL_SIZE)),
+                CompletableFuture.runAsync(() -> stopTree = new StopKDTree(stops)),
+                CompletableFuture.runAsync(() -> nameIndex = new StopNameIndex(stops)));
+            createAndConnectEdges();
+            indexes.join();
+        }
+        else {
+            stopGrid = new SpatialGrid(stops, GRID_CELL_SIZE);
+            stopTree = new StopKDTree(stops);
+            nameIndex = new StopNameIndex(stops);
+            createAndConnectEdges();
+        }
 
         // printGraphData();   // you could uncomment this to help in debugging your code
     }
@@ -49,7 +113,7 @@ public class Graph {
     public void printGraphData(){
         System.out.println("============================\nLines:");
         for (Line line : lines){
-            System.out.println(line.getId()+ "("+line.getStops().size()+" stops)");
+            System.out.println(line.getId()+ "("+line.numStops()+" stops)");
         }
         System.out.println("\n=============================\nStops:");
         for (Stop stop : stops){
@@ -69,27 +133,123 @@ public class Graph {
      *  identify all the edges that connect stops along a Line.
      * - Construct the collection of all Edges in the graph  and
      * - Construct the forward neighbour edges of each Stop.
+     * In parallel mode, each line is turned into edges as a separate task,
+     *  and then the edges are grouped by the stop they come out of, so that
+     *  each stop's edges are added by just one task and no locking is needed.
      */
     private void createAndConnectEdges() {
-        for (Line line : lines) {
-            // step through the adjacent pairs of stops in the line
-            String transpType =  line.getType();
-            for (int i = 0; i < line.getStops().size() - 1; i++) {
-                Stop from = line.getStops().get(i);
-                Stop to   = line.getStops().get(i+1);
-                double distance = from.distanceTo(to);
-                int travelTime = line.getTravelTimeBetween(from, to);
-                Edge edge = new Edge(from, to, transpType, line, travelTime, distance);
-                from.addEdge(edge);
-                edges.add(edge);
+        if (!parallel) {
+            for (Line line : lines) {
+                for (Edge edge : makeLineEdges(line)) {
+                    edge.fromStop().addEdge(edge);
+                    transitEdges.add(edge);
+                }
             }
+            return;
+        }
+        List<Edge[]> lineEdges = lines.parallelStream()
+            .map(this::makeLineEdges)
+            .collect(Collectors.toList());
+        for (Edge[] edges : lineEdges) {
+            transitEdges.addAll(Arrays.asList(edges));
+        }
+
+        // counting sort of the edges by the index of the stop they come out of
+        int[] start = new int[stopArray.length + 1];
+        for (Edge edge : transitEdges) {
+            start[edge.fromStop().getIndex() + 1]++;
+        }
+        for (int s = 0; s < stopArray.length; s++) {
+            start[s + 1] += start[s];
         }
+        Edge[] byStop = new Edge[transitEdges.size()];
+        int[] next = Arrays.copyOf(start, stopArray.length);
+        for (Edge edge : transitEdges) {
+            byStop[next[edge.fromStop().getIndex()]++] = edge;
+        }
+        IntStream.range(0, stopArray.length).parallel().forEach(s -> {
+            for (int e = start[s]; e < start[s + 1]; e++) {
+                stopArray[s].addEdge(byStop[e]);
+            }
+        });
+    }
+
+    /**
+     * Make the edges between the adjacent pairs of stops in a line
+     */
+    private Edge[] makeLineEdges(Line line) {
+        String transpType =  line.getType();
+        Edge[] edges = new Edge[Math.max(line.numStops() - 1, 0)];
+        // step through the adjacent pairs of stops in the line
+        for (int i = 0; i < line.numStops() - 1; i++) {
+            Stop from = line.getStop(i);
+            Stop to   = line.getStop(i+1);
+            double distance = from.distanceTo(to);
+            int travelTime = line.getSegmentTime(i); // straight from the time offsets
+            edges[i] = new Edge(from, to, transpType, line, travelTime, distance);
+        }
+        return edges;
     }
 
     //=============================================================================
     //  ***  Recompute Walking edges and add to the graph  ***
     //=============================================================================
     //
+    // The first time the walking edges are needed, the graph finds every pair of stops
+    // that are at most WALKING_LIMIT apart, and makes the walking edges (both ways)
+    // between them, sorted by distance, in walkingCandidates.
+    // The walking edges in the graph for a walking distance d are then always the first
+    // walkingCount candidates (all those with distance <= d), so changing the walking
+    // distance only needs to add or remove the candidates between the old and new counts.
+    // The walkingEdges field is just a view of those first walkingCount candidates,
+    // so it always agrees with the walking edges of the stops.
+
+    /** The largest walking distance that is handled incrementally (in meters) */
+    public static final int WALKING_LIMIT = 500;
+
+    private Edge[] walkingCandidates = null;  // all walking edges up to WALKING_LIMIT, sorted by distance
+    private int walkingCount = 0;             // number of the candidates that are currently in the graph
+    private double walkingDistance = -1;      // the current walking distance (-1 if there are no walking edges)
+
+    /**
+     * Change the walking distance, so that the graph has walking edges (both ways)
+     * between all pairs of stops that are at most walkingDistance apart.
+     * Only the walking edges with distances between the old and the new walking
+     * distance are added or removed.
+     * Distances above WALKING_LIMIT are handled by rebuilding all the walking edges.
+     */
+    public void setWalkingDistance(double walkingDistance) {
+        if (walkingDistance > WALKING_LIMIT || this.walkingDistance > WALKING_LIMIT) {
+            removeWalkingEdges();
+            recomputeWalkingEdges(walkingDistance);
+            return;
+        }
+        Edge[] candidates = walkingCandidates();
+        int newCount = countCandidatesWithin(walkingDistance);
+        // add the new edges in increasing order of distance, and remove edges in decreasing
+        // order, so the edges out of each stop always stay in order of distance.
+        for (int i = walkingCount; i < newCount; i++) {
+            Edge edge = candidates[i];
+            edge.fromStop().addEdge(edge);
+        }
+        for (int i = walkingCount - 1; i >= newCount; i--) {
+            Edge edge = candidates[i];
+            edge.fromStop().removeEdge(edge);
+        }
+        if (newCount != walkingCount) {
+            edgesChanged();
+        }
+        walkingCount = newCount;
+        walkingEdges = Arrays.asList(candidates).subList(0, walkingCount);
+        this.walkingDistance = walkingDistance;
+        walkingDistanceChanged();
+    }
+
+    /** Return the current walking distance (-1 if there are no walking edges) */
+    public double getWalkingDistance() {
+        return walkingDistance;
+    }
+
     /** 
      * Reconstruct all the current walking edges in the graph,
      * based on the specified walkingDistance:
@@ -98,40 +258,233 @@ public class Graph {
      * Assumes that all the previous walking edges have been removed
      */
     public void recomputeWalkingEdges(double walkingDistance) {
-        int count = 0;
-        for (Stop s1: stops){
-            for (Stop s2: stops){
-                double distance = s1.distanceTo(s2);
-                int travelTime = (int)Math.ceil(distance / Transport.WALKING_SPEED_MPS);
-                if (s1 != s2 && distance <= walkingDistance) {
-                    Edge edge1 = new Edge(s1, s2, Transport.WALKING, null, travelTime, distance);
-                    Edge edge2 = new Edge(s2, s1, Transport.WALKING, null, travelTime, distance);
-                
-                    s1.addEdge(edge1);
-                    s2.addEdge(edge2);
-                
-                    this.edges.add(edge1);  
-                    this.edges.add(edge2);  
-                    count += 2;
-                }
-            }
+        if (walkingDistance <= WALKING_LIMIT) {
+            setWalkingDistance(walkingDistance);
+            System.out.println("Walking edges added: " + walkingCount);
+            return;
+        }
+        edgesChanged();
+        walkingEdges = findWalkingEdges(walkingDistance);
+        for (Edge edge : walkingEdges) {
+            edge.fromStop().addEdge(edge);
         }
-        System.out.println("Walking edges added: " + count);
+        this.walkingDistance = walkingDistance;
+        walkingDistanceChanged();
+        System.out.println("Walking edges added: " + walkingEdges.size());
     }
 
     /** 
      * Remove all the current walking edges in the graph
-     * - from the forward neighbours of each Stop.
-     * - from the edges field (the collection of all the edges in the graph)
+     * - from the forward neighbours of each Stop (replacing the block of walking edges).
+     * - from the walkingEdges field
      */
     public void removeWalkingEdges() {
-        edges.removeIf(edge -> edge.transpType() == Transport.WALKING);
+        edgesChanged();
+        for (Stop stop : stops) {
+            stop.deleteEdgesOfType(Transport.WALKING);
+        }
+        walkingEdges = Collections.emptyList();
+        walkingCount = 0;
+        walkingDistance = -1;
+        walkingDistanceChanged();
+    }
+
+    /**
+     * Record that the edges have changed: drop the snapshot, move on to a new
+     * generation, and invalidate the paths found in the old one.
+     */
+    private void edgesChanged() {
+        snapshot = null;
+        generation++;
+        routeCache.invalidate();
+    }
+
+    /**
+     * Tell the replanner (if there is one) which walking edges the graph now has,
+     * so it can switch just those edges on or off in its search.
+     */
+    private synchronized void walkingDistanceChanged() {
+        if (replanner != null) {
+            replanner.setWalkingDistance(walkingDistance);
+        }
+    }
+
+    /**
+     * The walking candidates, found the first time they are needed
+     * (synchronized, since the replanner may be built on another thread)
+     */
+    private synchronized Edge[] walkingCandidates() {
+        if (walkingCandidates == null) {
+            walkingCandidates = findWalkingCandidates();
+        }
+        return walkingCandidates;
+    }
+
+    /**
+     * Make the walking edges between all pairs of stops up to WALKING_LIMIT apart,
+     * sorted by distance (the sort is stable, so the order is the same in parallel mode).
+     */
+    private Edge[] findWalkingCandidates() {
+        List<Edge> candidates = findWalkingEdges(WALKING_LIMIT);
+        Edge[] sorted = candidates.toArray(new Edge[candidates.size()]);
+        if (parallel) {
+            Arrays.parallelSort(sorted, (Edge e1, Edge e2) -> Double.compare(e1.distance(), e2.distance()));
+        }
+        else {
+            Arrays.sort(sorted, (Edge e1, Edge e2) -> Double.compare(e1.distance(), e2.distance()));
+        }
+        return sorted;
+    }
+
+    /**
+     * Make the walking edges (both ways) between all pairs of stops that are at most
+     * walkingDistance apart.
+     * In parallel mode, the candidates for each stop are found as separate tasks
+     *  (the grid is only read, so the tasks share nothing that changes).
+     */
+    private List<Edge> findWalkingEdges(double walkingDistance) {
+        if (parallel) {
+            return Arrays.stream(stopArray).parallel()
+                .flatMap((Stop s1) -> findWalkingEdgesFrom(s1, walkingDistance).stream())
+                .collect(Collectors.toList());
+        }
+        List<Edge> walkingEdges = new ArrayList<Edge>();
+        for (Stop s1: stopArray){
+            walkingEdges.addAll(findWalkingEdgesFrom(s1, walkingDistance));
+        }
+        return walkingEdges;
+    }
+
+    /**
+     * Make the walking edges (both ways) between s1 and all the stops that come after it
+     * (in the order of Stops) that are at most walkingDistance away.
+     * Uses the spatial grid so that s1 is only compared with the stops in the cells near it,
+     * and only the stops after s1 are used so that each pair of stops is only considered once.
+     */
+    private List<Edge> findWalkingEdgesFrom(Stop s1, double walkingDistance) {
+        List<Edge> walkingEdges = new ArrayList<Edge>();
+        for (Stop s2: stopGrid.getStopsWithin(s1.getPoint(), walkingDistance)){
+            if (s1.compareTo(s2) < 0) { // only do each pair once, and never a stop with itself
+                double distance = s1.distanceTo(s2);
+                int travelTime = (int)Math.ceil(distance / Transport.WALKING_SPEED_MPS);
+                walkingEdges.add(new Edge(s1, s2, Transport.WALKING, null, travelTime, distance));
+                walkingEdges.add(new Edge(s2, s1, Transport.WALKING, null, travelTime, distance));
+            }
+        }
+        return walkingEdges;
+    }
+
+    /** The number of walking candidates that are at most walkingDistance long */
+    private int countCandidatesWithin(double walkingDistance) {
+        int lo = 0;
+        int hi = walkingCandidates.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (walkingCandidates[mid].distance() <= walkingDistance) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return lo;
     }
 
     //=============================================================================
     //  Methods to access data from the graph. 
     //=============================================================================
 
+    /**
+     * The graph that both stops are in, or null if either stop is null or they are not in
+     * the same graph (the check made by all the searches between two Stops)
+     */
+    public static Graph commonGraph(Stop start, Stop goal) {
+        if (start == null || goal == null || start.getGraph() != goal.getGraph()) {
+            return null;
+        }
+        return start.getGraph();
+    }
+
+    /**
+     * Return an immutable compact snapshot of the graph for routing.
+     * The snapshot is made the first time it is needed after the edges change,
+     * and then shared by all the searches until the edges change again.
+     * Its landmark tables are computed in the background, so the first query after a
+     * change of the walking distance doesn't wait for them.
+     */
+    public GraphSnapshot freeze() {
+        if (snapshot == null) {
+            snapshot = new GraphSnapshot(stops, lines);
+            snapshot.buildLandmarksInBackground();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return a snapshot of the graph as it would be with the walking distance at
+     * WALKING_LIMIT: the transit edges and all the walking candidates, whatever the
+     * current walking distance. It is made afresh on each call (the PathReplanner
+     * keeps one, and switches the walking edges on and off itself).
+     */
+    public GraphSnapshot freezeWalkingLimit() {
+        return new GraphSnapshot(stops, lines,
+                                 new JoinedCollection<Edge>(transitEdges, Arrays.asList(walkingCandidates())));
+    }
+
+    /**
+     * Return the generation of the graph: a number that goes up every time the edges change
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Return the cache of the paths found in the graph (cleared whenever the edges change)
+     */
+    public RouteCache getRouteCache() {
+        return routeCache;
+    }
+
+    /**
+     * Return the replanner for the graph, which repairs its last path when the
+     * walking distance changes, instead of searching again (made the first time it is needed)
+     */
+    public PathReplanner getReplanner() {
+        PathReplanner built = replanner;
+        if (built == null) {
+            synchronized (replannerLock) {
+                built = replanner;
+                if (built == null) {
+                    built = new PathReplanner(this);
+                    publishReplanner(built);
+                }
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Start the replanner on the walking distance of the graph now (which may have changed
+     * while it was being built), and from then on tell it about every change
+     */
+    private synchronized void publishReplanner(PathReplanner built) {
+        built.setWalkingDistance(walkingDistance);
+        replanner = built;
+    }
+
+    /**
+     * The replanner, if it has been built, or null (without waiting for it).
+     * Building it takes a few tenths of a second (a snapshot with all the walking
+     * candidates, its state graph and landmarks), so an interactive caller can build it
+     * in the background (buildReplannerInBackground) and search without it until then.
+     */
+    public PathReplanner replannerIfBuilt() {
+        return replanner;
+    }
+
+    /** Start building the replanner on another thread (if it isn't built yet) */
+    public void buildReplannerInBackground() {
+        if (replanner == null) {
+            CompletableFuture.runAsync(this::getReplanner);
+        }
+    }
+
     /**
      * Return a collection of all the lines in the network
      */        
@@ -150,36 +503,80 @@ public class Graph {
      * Return a collection of all the edges in the network
      */        
     public Collection<Edge> getEdges() {
-        return Collections.unmodifiableCollection(edges);
+        return new JoinedCollection<Edge>(transitEdges, walkingEdges);
+    }
+
+    /**
+     * Return the edges along lines in the network
+     */        
+    public List<Edge> getTransitEdges() {
+        return Collections.unmodifiableList(transitEdges);
+    }
+
+    /**
+     * Return the current walking edges in the network
+     */        
+    public List<Edge> getWalkingEdges() {
+        return Collections.unmodifiableList(walkingEdges);
+    }
+
+    /**
+     * Return the spatial index over the locations of the stops
+     */
+    public SpatialGrid getStopGrid() {
+        return stopGrid;
+    }
+
+    /**
+     * Return the stop closest to the given location (null if there are no stops)
+     */
+    public Stop findClosestStop(GisPoint loc) {
+        return stopTree.nearest(loc);
+    }
+
+    /**
+     * Return the k stops closest to the given location, nearest first
+     */
+    public List<Stop> findClosestStops(GisPoint loc, int k) {
+        return stopTree.nearest(loc, k);
+    }
+
+    /**
+     * Return all the stops that are at most radius meters from the given location
+     */
+    public List<Stop> findStopsWithin(GisPoint loc, double radius) {
+        return stopTree.within(loc, radius);
     }
 
     /**
      * Return the first stop that starts with the specified prefix
-     * (first by alphabetic order of name)
+     * (first by alphabetic order of name, ignoring case)
      */
     public Stop getFirstMatchingStop(String prefix) {
-        prefix = prefix.toLowerCase();
-        for (Stop stop : stops) {
-            if (stop.getName().toLowerCase().startsWith(prefix)) {
-                return stop;
-            }
-        }
-        return null;
+        return nameIndex.firstMatch(prefix);
     }
 
     /** 
      * Return all the stops that start with the specified prefix
-     * in alphabetic order.
-     * This version is not very efficient
+     * in alphabetic order (ignoring case).
+     * Uses the name index, so it only takes O(log n + k) for k matches
      */
     public List<Stop> getAllMatchingStops(String prefix) {
-        List<Stop> ans = new ArrayList<Stop>();
-        prefix = prefix.toLowerCase();
-        for (Stop stop : stops) {
-            if (stop.getName().toLowerCase().startsWith(prefix)) {
-                ans.add(stop);
-            }
-        }
-        return ans;
+        return nameIndex.allMatches(prefix);
+    }
+
+    /**
+     * Return the number of stops that start with the specified prefix
+     */
+    public int countMatchingStops(String prefix) {
+        return nameIndex.countMatches(prefix);
+    }
+
+    /** 
+     * Return the (at most) k best stops that start with the specified prefix,
+     * ranked with the stops on the most lines first, for autocompletion.
+     */
+    public List<Stop> getTopMatchingStops(String prefix, int k) {
+        return nameIndex.topMatches(prefix, k);
     }
 }
@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * An immutable, compact copy of the edges of a Graph, for routing.
+ *
+ * Every Stop in the graph has a dense int index (Stop.getIndex()), and every Line
+ *  is given a dense int id.
+ * The edges are stored in compressed sparse row (CSR) form: the edges out of
+ *  stop s are the edge numbers from firstEdge(s) (inclusive) to endEdge(s) (exclusive),
+ *  and each edge is described by primitive arrays of
+ *  - the index of the stop it goes to,
+ *  - its travel time in seconds,
+ *  - its transport type code (see Transport.typeCode), and
+ *  - the id of its line (NO_LINE for walking edges).
+ * The original Edge objects are also kept so that a path found on the snapshot
+ *  can be returned as a List<Edge>.
+ * The edges into each stop are also indexed (in the same CSR form, as lists of
+ *  edge numbers), for searches that run backwards from a goal.
+ *
+ * Scanning the edges out of a stop just reads consecutive array entries,
+ *  with no iterators, boxing, or pointer chasing.
+ * A snapshot never changes; the Graph makes a new one whenever its edges change.
+ */
+public class GraphSnapshot {
+
+    public static final int NO_LINE = -1;
+
+    private final Stop[] stops;
+    private final Line[] lines;
+
+    private final int[] edgeStart;    // edges out of stop s are edgeStart[s] .. edgeStart[s+1]-1
+    private final int[] edgeTarget;   // index of the stop at the end of each edge
+    private final int[] edgeTime;     // travel time of each edge, in seconds
+    private final byte[] edgeType;    // transport type code of each edge
+    private final int[] edgeLine;     // line id of each edge (or NO_LINE)
+    private final int[] edgeSource;   // index of the stop at the start of each edge
+    private final Edge[] edges;       // the original edge objects
+
+    private final int[] inStart;      // edges into stop s are inEdges[inStart[s]] .. inEdges[inStart[s+1]-1]
+    private final int[] inEdges;      // edge numbers, grouped by the stop they go to
+
+    // preprocessed data for routing, made when first needed (each under its own lock,
+    // so that building one, eg the landmarks in the background, doesn't hold up the others)
+    private final Lazy<Landmarks> landmarks = new Lazy<Landmarks>(() -> new Landmarks(this, Landmarks.DEFAULT_NUM_LANDMARKS));
+    private final Lazy<StateGraph> stateGraph = new Lazy<StateGraph>(() -> new StateGraph(this));
+    private final Lazy<ContractionHierarchy> hierarchy = new Lazy<ContractionHierarchy>(() -> new ContractionHierarchy(this));
+    private final Lazy<Raptor> raptor = new Lazy<Raptor>(() -> new Raptor(this));
+
+    /**
+     * Construct a snapshot of the current edges out of the given stops.
+     * The stops must already have been given the indexes 0 .. stops.size()-1
+     */
+    public GraphSnapshot(Collection<Stop> stps, Collection<Line> lns) {
+        this(stps, lns, currentEdges(stps));
+    }
+
+    /**
+     * Construct a snapshot of the given edges between the given stops, which need not
+     * be the current edges of the stops (see Graph.freezeWalkingLimit()).
+     * The edges out of each stop are kept in the order they are given.
+     * The stops must already have been given the indexes 0 .. stops.size()-1
+     */
+    public GraphSnapshot(Collection<Stop> stps, Collection<Line> lns, Collection<Edge> edgeList) {
+        int numStops = stps.size();
+        stops = new Stop[numStops];
+        for (Stop stop : stps) {
+            stops[stop.getIndex()] = stop;
+        }
+
+        lines = lns.toArray(new Line[lns.size()]);
+        Map<Line, Integer> lineIds = new HashMap<Line, Integer>();
+        for (int id = 0; id < lines.length; id++) {
+            lineIds.put(lines[id], id);
+        }
+
+        // count the edges out of each stop to work out where each block of edges starts
+        edgeStart = new int[numStops + 1];
+        for (Edge edge : edgeList) {
+            edgeStart[edge.fromStop().getIndex() + 1]++;
+        }
+        for (int s = 0; s < numStops; s++) {
+            edgeStart[s + 1] += edgeStart[s];
+        }
+        int numEdges = edgeStart[numStops];
+        edgeTarget = new int[numEdges];
+        edgeTime = new int[numEdges];
+        edgeType = new byte[numEdges];
+        edgeLine = new int[numEdges];
+        edgeSource = new int[numEdges];
+        edges = new Edge[numEdges];
+
+        int[] nextEdge = Arrays.copyOf(edgeStart, numStops);
+        for (Edge edge : edgeList) {
+            int s = edge.fromStop().getIndex();
+            int e = nextEdge[s]++;
+            edgeTarget[e] = edge.toStop().getIndex();
+            edgeTime[e] = edge.getTravelTime();
+            edgeType[e] = Transport.typeCode(edge.transpType());
+            edgeLine[e] = (edge.line() == null) ? NO_LINE : lineIds.get(edge.line());
+            edgeSource[e] = s;
+            edges[e] = edge;
+        }
+
+        // group the edge numbers by the stop they go to
+        inStart = new int[numStops + 1];
+        for (int e = 0; e < numEdges; e++) {
+            inStart[edgeTarget[e] + 1]++;
+        }
+        for (int s = 0; s < numStops; s++) {
+            inStart[s + 1] += inStart[s];
+        }
+        inEdges = new int[numEdges];
+        int[] next = Arrays.copyOf(inStart, numStops);
+        for (int e = 0; e < numEdges; e++) {
+            inEdges[next[edgeTarget[e]]++] = e;
+        }
+    }
+
+    /** All the edges currently out of the stops */
+    private static List<Edge> currentEdges(Collection<Stop> stps) {
+        List<Edge> edgeList = new ArrayList<Edge>();
+        for (Stop stop : stps) {
+            edgeList.addAll(stop.getEdgesOut());
+        }
+        return edgeList;
+    }
+
+    //--------------------------------------------
+    //  Stops and lines
+    //--------------------------------------------
+
+    public int numStops() {return stops.length;}
+    public Stop getStop(int index) {return stops[index];}
+
+    public int numLines() {return lines.length;}
+    public Line getLine(int lineId) {return lines[lineId];}
+
+    //--------------------------------------------
+    //  Edges
+    //--------------------------------------------
+
+    public int numEdges() {return edges.length;}
+
+    /** The number of the first edge out of the stop */
+    public int firstEdge(int stop) {return edgeStart[stop];}
+
+    /** One more than the number of the last edge out of the stop */
+    public int endEdge(int stop) {return edgeStart[stop + 1];}
+
+    public int source(int edge) {return edgeSource[edge];}
+    public int target(int edge) {return edgeTarget[edge];}
+    public int travelTime(int edge) {return edgeTime[edge];}
+    public byte typeCode(int edge) {return edgeType[edge];}
+    public int lineId(int edge) {return edgeLine[edge];}
+    public Edge getEdge(int edge) {return edges[edge];}
+
+    /** The position of the first edge into the stop in the list of edges into stops */
+    public int firstInEdge(int stop) {return inStart[stop];}
+
+    /** One more than the position of the last edge into the stop */
+    public int endInEdge(int stop) {return inStart[stop + 1];}
+
+    /** The edge number at a position in the list of edges into stops */
+    public int inEdge(int position) {return inEdges[position];}
+
+    //--------------------------------------------
+    //  Preprocessed data that belongs to this snapshot
+    //--------------------------------------------
+
+    /**
+     * The landmark tables for this snapshot (for the A* heuristic).
+     * They are computed the first time they are needed; since a new snapshot is
+     * made whenever the walking edges change, the tables are always up to date.
+     */
+    public Landmarks getLandmarks() {
+        return landmarks.get();
+    }
+
+    /**
+     * The landmark tables, if they have been computed, or null (without waiting for them).
+     * Computing them takes a few dozen single source searches, which only pays off over
+     * many queries, so AStar uses them when they are there and does without otherwise.
+     */
+    public Landmarks landmarksIfBuilt() {
+        return landmarks.ifBuilt();
+    }
+
+    /** Start computing the landmark tables on another thread (if they aren't computed yet) */
+    public void buildLandmarksInBackground() {
+        if (landmarks.ifBuilt() == null) {
+            CompletableFuture.runAsync(this::getLandmarks);
+        }
+    }
+
+    /** The line-expanded state graph of this snapshot (see StateGraph) */
+    public StateGraph getStateGraph() {
+        return stateGraph.get();
+    }
+
+    /**
+     * The contraction hierarchy for this snapshot, for fast exact queries.
+     * It is only built if it is asked for, since building it takes much longer
+     * than a single search.
+     */
+    public ContractionHierarchy getContractionHierarchy() {
+        return hierarchy.get();
+    }
+
+    /** The flat line arrays of this snapshot for round-based routing (see Raptor) */
+    public Raptor getRaptor() {
+        return raptor.get();
+    }
+
+    /**
+     * A structure that is built the first time it is asked for.
+     * Only one thread builds it (the others wait on this holder's lock, not the
+     * snapshot's), and once it is built it is read without locking.
+     */
+    private static class Lazy<T> {
+        private final Supplier<T> builder;
+        private volatile T value = null;
+
+        Lazy(Supplier<T> builder) {
+            this.builder = builder;
+        }
+
+        T get() {
+            T built = value;
+            if (built == null) {
+                synchronized (this) {
+                    built = value;
+                    if (built == null) {
+                        built = builder.get();
+                        value = built;
+                    }
+                }
+            }
+            return built;
+        }
+
+        /** The structure, or null if it hasn't been built (yet) */
+        T ifBuilt() {
+            return value;
+        }
+    }
+}
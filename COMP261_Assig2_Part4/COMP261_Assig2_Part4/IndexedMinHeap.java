@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int items (0 .. capacity-1), each with a double priority.
+ * The heap records where each item is, so the priority of an item that is already
+ *  in the heap can be lowered (decrease-key) instead of adding a duplicate entry.
+ * It uses only primitive arrays, and clear() only forgets the items currently
+ *  in the heap, so one heap can be reused for many searches without allocating.
+ */
+public class IndexedMinHeap {
+
+    private int[] heap;         // the items, in heap order
+    private double[] priority;  // priority of each item (indexed by item)
+    private int[] position;     // position of each item in the heap, or -1 if it is not in the heap
+    private int size = 0;
+
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        priority = new double[capacity];
+        position = new int[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    public int capacity() {return position.length;}
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    public boolean contains(int item) {
+        return position[item] >= 0;
+    }
+
+    /** The priority of an item that is in the heap */
+    public double priority(int item) {
+        return priority[item];
+    }
+
+    /** The priority of the item at the top of the heap (the heap must not be empty) */
+    public double peekPriority() {
+        return priority[heap[0]];
+    }
+
+    /** The item at the top of the heap (the heap must not be empty) */
+    public int peek() {
+        return heap[0];
+    }
+
+    /**
+     * Add the item with the given priority, or if it is already in the heap,
+     * lower its priority (a higher priority is ignored).
+     * @return true if the item was added or its priority was lowered
+     */
+    public boolean offer(int item, double prio) {
+        int pos = position[item];
+        if (pos < 0) {
+            pos = size++;
+            heap[pos] = item;
+            position[item] = pos;
+        }
+        else if (prio >= priority[item]) {
+            return false;
+        }
+        priority[item] = prio;
+        siftUp(pos);
+        return true;
+    }
+
+    /** Remove and return the item with the lowest priority (the heap must not be empty) */
+    public int poll() {
+        int top = heap[0];
+        position[top] = -1;
+        size--;
+        if (size > 0) {
+            int last = heap[size];
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /** Remove all the items */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int pos) {
+        int item = heap[pos];
+        double prio = priority[item];
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            int parent = heap[parentPos];
+            if (priority[parent] <= prio) { break; }
+            heap[pos] = parent;
+            position[parent] = pos;
+            pos = parentPos;
+        }
+        heap[pos] = item;
+        position[item] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int item = heap[pos];
+        double prio = priority[item];
+        int half = size >>> 1;
+        while (pos < half) {
+            int childPos = 2 * pos + 1;
+            int child = heap[childPos];
+            int rightPos = childPos + 1;
+            if (rightPos < size && priority[heap[rightPos]] < priority[child]) {
+                childPos = rightPos;
+                child = heap[childPos];
+            }
+            if (prio <= priority[child]) { break; }
+            heap[pos] = child;
+            position[child] = pos;
+            pos = childPos;
+        }
+        heap[pos] = item;
+        position[item] = pos;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * The stops that can be reached from a start stop within a time budget,
+ *  with the time (in seconds) to reach each of them.
+ *
+ * The times follow the same wait penalty rules as AStar (shouldAddWaitPenalty),
+ *  computed exactly with Dijkstra's algorithm over the StateGraph of a snapshot.
+ *  Dijkstra's algorithm reaches the stops in order of time, so the search stops as
+ *  soon as the next state would be over the budget, and only touches the region
+ *  that can be reached.
+ *
+ * The stops are stored in the order they were reached (ie, by increasing time),
+ *  so the stops within any smaller budget are a prefix of the list (see countWithin).
+ */
+public class Isochrone {
+
+    private final GraphSnapshot graph;
+    private final int start;
+    private final int budget;
+    private int[] stops;   // indexes of the stops reached, in order of time
+    private int[] times;   // time to reach each of those stops
+    private int size = 0;
+
+    /**
+     * Find the stops that can be reached from the start stop (by index) within budget seconds
+     */
+    public Isochrone(GraphSnapshot graph, int start, int budget) {
+        this.graph = graph;
+        this.start = start;
+        this.budget = budget;
+        stops = new int[64];
+        times = new int[64];
+        search(graph.getStateGraph());
+    }
+
+    /**
+     * Find the stops that can be reached from the start stop within budget seconds,
+     * in the current snapshot of its graph (null if the stop is null or not in a graph)
+     */
+    public static Isochrone from(Stop start, int budget) {
+        if (start == null || start.getGraph() == null) {
+            return null;
+        }
+        return new Isochrone(start.getGraph().freeze(), start.getIndex(), budget);
+    }
+
+    private void search(StateGraph states) {
+        add(start, 0);
+        StateSearch search = new StateSearch(states, SearchSpace.forThread(states.numStates()), false,
+                                             StateSearch.ALL_ARCS, StateSearch.NO_ESTIMATE);
+        search.setMaxCost(budget);
+        // the journey can start on any of the edges at the start stop, with no penalty
+        for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+            search.seed(x, 0);
+        }
+        search.exclude(states.hub(start));
+        while (!search.isEmpty() && search.peekPriority() <= budget) {
+            int current = search.settleNext();
+            if (states.isHub(current)) {
+                add(states.stopOf(current), (int) search.cost(current));
+            }
+            search.relax(current);
+        }
+    }
+
+    private void add(int stop, int time) {
+        if (size == stops.length) {
+            stops = Arrays.copyOf(stops, 2 * size);
+            times = Arrays.copyOf(times, 2 * size);
+        }
+        stops[size] = stop;
+        times[size] = time;
+        size++;
+    }
+
+    public GraphSnapshot getGraph() {return graph;}
+    public Stop getStart() {return graph.getStop(start);}
+    public int getBudget() {return budget;}
+
+    /** The number of stops reached (including the start) */
+    public int size() {return size;}
+
+    /** The ith stop reached (they are in order of time) */
+    public Stop getStop(int i) {return graph.getStop(stops[i]);}
+
+    /** The time in seconds to reach the ith stop */
+    public int getTime(int i) {return times[i];}
+
+    /** The number of stops that can be reached within a smaller time (the first ones in the list) */
+    public int countWithin(int time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {   // find the first stop with a time over the limit
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= time) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An unmodifiable view of two collections joined together:
+ * all the elements of the first collection, followed by all the elements of the second.
+ * Nothing is copied, so the view always shows the current contents of both collections.
+ * (Used to present the transit and walking edges as one collection of edges.)
+ */
+public class JoinedCollection<E> extends AbstractCollection<E> {
+
+    private final Collection<? extends E> first;
+    private final Collection<? extends E> second;
+
+    public JoinedCollection(Collection<? extends E> first, Collection<? extends E> second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public int size() {
+        return first.size() + second.size();
+    }
+
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private Iterator<? extends E> current = first.iterator();
+            private boolean onSecond = false;
+
+            public boolean hasNext() {
+                if (!current.hasNext() && !onSecond) {
+                    current = second.iterator();
+                    onSecond = true;
+                }
+                return current.hasNext();
+            }
+
+            public E next() {
+                if (!hasNext()) { throw new NoSuchElementException(); }
+                return current.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Alternative routes: the k shortest loopless paths between two stops (Yen's algorithm),
+ *  ranked by their cost under the wait penalty rules (AStar.pathTime).
+ *
+ * Each path after the first leaves one of the paths already found at some stop (the spur
+ *  stop): it follows that path (the root) to the spur stop, and then takes the cheapest way
+ *  to the goal that doesn't use an edge out of the spur stop that another path with the same
+ *  root already uses, or go back through a stop of the root. The edges and stops that are
+ *  left out are marked in BitSets for each spur search; the graph itself is not changed.
+ *  The searches are over states, so the cheapest spur can still pass through one stop twice
+ *  (in different states). The detour between the two visits costs at least as much as
+ *  changing lines at that stop, so it is cut out (see withoutLoops), which leaves a
+ *  loopless path that costs no more: the cheapest loopless spur, so the paths are exact.
+ *  As in Lawler's version, the spur stops of a path are only the ones after the
+ *  point where it left the path it came from.
+ *
+ * The searches run over the StateGraph of the snapshot, so the costs are exact, and a spur
+ *  search starts in the state of the last edge of the root (so it knows whether carrying
+ *  on needs a wait penalty). One backward A* search from the goal is shared by all the
+ *  spur searches: it finds the cost to the goal from every state it settles (and the
+ *  first path), and leaving out edges can only make the costs higher, so those costs
+ *  are a lower bound that guides the spur searches (A*) almost straight to the goal.
+ *  The backward search goes on a little past the start (EXTRA_RADIUS), and a landmark
+ *  based lower bound is used for the states it did not settle (see estimate).
+ * A spur search also gives up as soon as it can't beat the candidates already found.
+ */
+public class KShortestPaths {
+
+    public static final int EXTRA_RADIUS = AStar.WAIT_PENALTY;  // seconds past the cost of the first path
+
+    private static final ThreadLocal<SearchSpace> BACKWARD = ThreadLocal.withInitial(() -> new SearchSpace(0));
+
+    /** A path (as snapshot edge numbers), its cost, and the position where it left its parent */
+    private static class Path implements Comparable<Path> {
+        final int[] edges;
+        final double cost;
+        final int deviation;
+
+        Path(int[] edges, double cost, int deviation) {
+            this.edges = edges;
+            this.cost = cost;
+            this.deviation = deviation;
+        }
+
+        public int compareTo(Path other) {
+            return Double.compare(cost, other.cost);
+        }
+
+        public boolean equals(Object other) {
+            return (other instanceof Path) && Arrays.equals(edges, ((Path) other).edges);
+        }
+
+        public int hashCode() {
+            return Arrays.hashCode(edges);
+        }
+    }
+
+    private final GraphSnapshot graph;
+    private final StateGraph states;
+    private final Landmarks landmarks;
+    private final int start;
+    private final int goal;
+    private StateSearch backward;
+    private double frontier;  // smallest cost + estimate left in the backward search
+
+    private final BitSet blockedEdges;
+    private final BitSet blockedStops;
+    private final BitSet pathStops;      // the stops of a path, to check that it is loopless
+
+    private KShortestPaths(GraphSnapshot graph, int start, int goal) {
+        this.graph = graph;
+        this.states = graph.getStateGraph();
+        this.landmarks = graph.getLandmarks();
+        this.start = start;
+        this.goal = goal;
+        this.blockedEdges = new BitSet(graph.numEdges());
+        this.blockedStops = new BitSet(graph.numStops());
+        this.pathStops = new BitSet(graph.numStops());
+    }
+
+    /**
+     * Finds up to k shortest loopless paths between two stops, cheapest first.
+     * Returns an empty list if start or goal are null or there is no path,
+     * and a list with just an empty path if start and goal are the same.
+     */
+    public static List<List<Edge>> findPaths(Stop start, Stop goal, int k) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null) {
+            return Collections.emptyList();
+        }
+        return findPaths(graph.freeze(), start.getIndex(), goal.getIndex(), k);
+    }
+
+    /**
+     * Finds up to k shortest loopless paths between two stops (given by their indexes)
+     * in a graph snapshot, cheapest first
+     */
+    public static List<List<Edge>> findPaths(GraphSnapshot graph, int start, int goal, int k) {
+        if (k < 1) {
+            return Collections.emptyList();
+        }
+        if (start == goal) {
+            return List.of(Collections.emptyList());
+        }
+        return new KShortestPaths(graph, start, goal).run(k);
+    }
+
+    private List<List<Edge>> run(int k) {
+        Path first = searchBackward();
+        if (first == null) {
+            return Collections.emptyList();
+        }
+        List<Path> found = new ArrayList<Path>();
+        List<Path> candidates = new ArrayList<Path>();   // in order of cost
+        Set<Path> seen = new HashSet<Path>();
+        found.add(first);
+        seen.add(first);
+        SearchSpace space = SearchSpace.forThread(states.numStates());
+        while (found.size() < k) {
+            Path last = found.get(found.size() - 1);
+            double rootCost = 0;
+            for (int i = 0; i < last.edges.length; i++) {
+                if (i >= last.deviation) {
+                    // only the cheapest (k - found) candidates can still be used
+                    int needed = k - found.size();
+                    double limit = (candidates.size() < needed) ? Double.POSITIVE_INFINITY : candidates.get(needed - 1).cost;
+                    Path spur = spurPath(space, last, i, found, rootCost, limit);
+                    if (spur != null && seen.add(spur)) {
+                        int pos = Collections.binarySearch(candidates, spur);
+                        candidates.add((pos < 0) ? -pos - 1 : pos, spur);
+                    }
+                }
+                rootCost += edgeCost(last.edges, i);
+            }
+            if (candidates.isEmpty()) { break; }
+            found.add(candidates.remove(0));
+        }
+
+        List<List<Edge>> paths = new ArrayList<List<Edge>>();
+        for (Path path : found) {
+            List<Edge> edges = new ArrayList<Edge>(path.edges.length);
+            for (int edge : path.edges) {
+                edges.add(graph.getEdge(edge));
+            }
+            paths.add(edges);
+        }
+        return paths;
+    }
+
+    /** The cost of the ith edge of a path, including the wait penalty before it */
+    private int edgeCost(int[] edges, int i) {
+        int penalty = (i > 0 && AStar.shouldAddWaitPenalty(graph, edges[i - 1], edges[i])) ? AStar.WAIT_PENALTY : 0;
+        return graph.travelTime(edges[i]) + penalty;
+    }
+
+    /**
+     * A* search backwards from the goal towards the start (using the landmark lower bound
+     * from the start), until it is a little past the start.
+     * Returns the first path (following the search tree from the start), or null if
+     * the goal can't be reached from the start.
+     */
+    private Path searchBackward() {
+        backward = new StateSearch(states, BACKWARD.get(), true, StateSearch.ALL_ARCS,
+                                   (int state) -> landmarks.lowerBound(start, states.stopOf(state)));
+        backward.seed(states.hub(goal), 0);
+        double best = Double.POSITIVE_INFINITY;
+        int bestState = -1;
+        while (!backward.isEmpty() && backward.peekPriority() <= best + EXTRA_RADIUS) {
+            int current = backward.settleNext();
+            double cost = backward.cost(current);
+            if (states.stopOf(current) == start && !states.isHub(current) && cost < best) {
+                best = cost;    // the journey can start in any ride state of the start
+                bestState = current;
+            }
+            backward.relax(current);
+        }
+        // every state that was not settled has cost + estimate at least this much
+        frontier = backward.isEmpty() ? Double.POSITIVE_INFINITY : backward.peekPriority();
+        if (bestState < 0) {
+            return null;
+        }
+        return loopless(backward.pathEdges(bestState), best, 0);
+    }
+
+    /**
+     * A lower bound on the cost from a state to the goal: exact if the backward search
+     * settled it, and otherwise the better of the landmark bound to the goal and
+     * the frontier less the landmark bound from the start (which is consistent, since
+     * the backward search settles states in order of cost + estimate).
+     * If the backward search ran out of states, the others can't reach the goal.
+     */
+    private double estimate(int state) {
+        if (backward.isSettled(state)) {
+            return backward.cost(state);
+        }
+        if (frontier == Double.POSITIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int stop = states.stopOf(state);
+        return Math.max(landmarks.lowerBound(stop, goal), frontier - landmarks.lowerBound(start, stop));
+    }
+
+    /**
+     * The cheapest path that follows the first i edges of a path (the root) and then leaves it,
+     * or null if there is none that costs less than the limit
+     */
+    private Path spurPath(SearchSpace space, Path path, int i, List<Path> found, double rootCost, double limit) {
+        int spurStop = (i == 0) ? start : graph.target(path.edges[i - 1]);
+        // leave out the next edges of the paths with the same root, and the stops of the root
+        blockedEdges.clear();
+        blockedStops.clear();
+        for (Path other : found) {
+            if (other.edges.length > i && Arrays.equals(other.edges, 0, i, path.edges, 0, i)) {
+                blockedEdges.set(other.edges[i]);
+            }
+        }
+        for (int j = 0; j < i; j++) {
+            blockedStops.set(graph.source(path.edges[j]));
+        }
+
+        // A* search from the state of the last edge of the root (or from the start)
+        StateSearch search = new StateSearch(states, space, false, this::allows, this::estimate);
+        if (i == 0) {
+            for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+                search.seed(x, 0);
+            }
+        }
+        else {
+            search.seed(states.rideState(spurStop, StateGraph.edgeKey(graph, path.edges[i - 1])), rootCost);
+        }
+        int target = states.hub(goal);
+        while (!search.isEmpty() && search.peekPriority() < limit) {
+            int current = search.settleNext();
+            if (current == target) {
+                int[] spur = search.pathEdges(target);
+                int[] edges = Arrays.copyOf(path.edges, i + spur.length);
+                System.arraycopy(spur, 0, edges, i, spur.length);
+                return loopless(edges, search.cost(target), i);
+            }
+            search.relax(current);
+        }
+        return null;
+    }
+
+    /** Whether a spur search may use an arc: not an edge or a stop that is left out */
+    private boolean allows(int arc) {
+        int edge = states.arcEdge(arc);
+        return !blockedStops.get(states.stopOf(states.arcTarget(arc)))
+            && (edge == StateGraph.NO_EDGE || !blockedEdges.get(edge));
+    }
+
+    /**
+     * The Path for the edges found by a search, with any detours through a stop it
+     * had already been to cut out (the root, before the deviation, has none)
+     */
+    private Path loopless(int[] edges, double cost, int deviation) {
+        if (repeatedStop(edges) < 0) {
+            return new Path(edges, cost, deviation);
+        }
+        int[] cut = withoutLoops(edges, deviation);
+        double cutCost = 0;
+        for (int j = 0; j < cut.length; j++) {
+            cutCost += edgeCost(cut, j);
+        }
+        return new Path(cut, cutCost, deviation);
+    }
+
+    /**
+     * The path with the part between the first and the last visit to each stop cut out
+     * (starting from position from).
+     * The part that is cut out costs at least as much as what replaces it: its travel
+     * times, plus a wait penalty unless the edges on either side of it have the same key,
+     * in which case there is no penalty where they now meet. So the cut path is loopless
+     * and costs no more than the path.
+     */
+    private int[] withoutLoops(int[] edges, int from) {
+        int[] cut = Arrays.copyOf(edges, edges.length);
+        int count = from;
+        for (int j = from; j < edges.length; ) {
+            // jump to the last visit to the stop at position j
+            int stop = stopAt(edges, j);
+            int last = j;
+            for (int r = edges.length; r > j; r--) {
+                if (stopAt(edges, r) == stop) { last = r; break; }
+            }
+            if (last == edges.length) { break; }
+            cut[count++] = edges[last];
+            j = last + 1;
+        }
+        return Arrays.copyOf(cut, count);
+    }
+
+    /** The stop at a position along a path: before its jth edge, or at the end */
+    private int stopAt(int[] edges, int j) {
+        return (j < edges.length) ? graph.source(edges[j]) : graph.target(edges[j - 1]);
+    }
+
+    /**
+     * The first stop that a path (edge numbers) goes through more than once, or -1
+     */
+    private int repeatedStop(int[] path) {
+        if (path.length == 0) { return -1; }
+        pathStops.clear();
+        for (int edge : path) {
+            int stop = graph.source(edge);
+            if (pathStops.get(stop)) { return stop; }
+            pathStops.set(stop);
+        }
+        int last = graph.target(path[path.length - 1]);
+        return pathStops.get(last) ? last : -1;
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+/**
+ * Landmark tables for the ALT heuristic (A*, Landmarks, Triangle inequality).
+ *
+ * A few stops are chosen as landmarks, and the travel time (without any wait
+ *  penalties) from each landmark to every stop, and from every stop to each
+ *  landmark, is computed once with Dijkstra's algorithm.
+ * For any landmark L, the triangle inequality gives two lower bounds on the
+ *  travel time from a stop v to the goal t:
+ *     time(L,t) - time(L,v)    and    time(v,L) - time(t,L)
+ * Since wait penalties only add to the cost of a path, these are also lower bounds
+ *  on the cost that AStar minimises, so the heuristic stays admissible.
+ *
+ * The landmarks are chosen by farthest point sampling: each new landmark is the
+ *  stop that is furthest (in a straight line) from all the landmarks chosen so far,
+ *  which puts them around the edges of the network, where they give the best bounds.
+ *
+ * The tables are stored in int arrays, with the entries for one stop next to each
+ *  other (entry [stop * numLandmarks + landmark]), so the heuristic for a stop
+ *  reads one short run of the array.
+ * The tables belong to one GraphSnapshot (see GraphSnapshot.getLandmarks());
+ *  when the walking edges change the Graph makes a new snapshot, which computes new tables
+ *  in the background (AStar does without them until they are ready).
+ */
+public class Landmarks {
+
+    public static final int DEFAULT_NUM_LANDMARKS = 8;
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final GraphSnapshot graph;
+    private final int[] landmarks;  // stop indexes of the landmarks
+    private final int[] fromLandmark;  // [stop * numLandmarks + l] = time from landmark l to stop
+    private final int[] toLandmark;    // [stop * numLandmarks + l] = time from stop to landmark l
+
+    /**
+     * Choose up to numLandmarks landmarks in the snapshot and compute their travel time tables.
+     */
+    public Landmarks(GraphSnapshot graph, int numLandmarks) {
+        this.graph = graph;
+        int numStops = graph.numStops();
+        landmarks = chooseLandmarks(graph, Math.min(numLandmarks, numStops));
+        int k = landmarks.length;
+        fromLandmark = new int[numStops * k];
+        toLandmark = new int[numStops * k];
+        int[] times = new int[numStops];
+        IndexedMinHeap fringe = new IndexedMinHeap(numStops);
+        for (int l = 0; l < k; l++) {
+            travelTimes(graph, landmarks[l], false, times, fringe);
+            for (int s = 0; s < numStops; s++) {
+                fromLandmark[s * k + l] = times[s];
+            }
+            travelTimes(graph, landmarks[l], true, times, fringe);
+            for (int s = 0; s < numStops; s++) {
+                toLandmark[s * k + l] = times[s];
+            }
+        }
+    }
+
+    public GraphSnapshot getGraph() {return graph;}
+    public int numLandmarks() {return landmarks.length;}
+
+    /** The stop index of a landmark */
+    public int getLandmark(int l) {return landmarks[l];}
+
+    /**
+     * A lower bound on the cost of travelling from one stop to another (by index).
+     * Returns infinity if the landmark tables show that there is no path at all.
+     */
+    public double lowerBound(int from, int to) {
+        int k = landmarks.length;
+        int fromBase = from * k;
+        int toBase = to * k;
+        int best = 0;
+        for (int l = 0; l < k; l++) {
+            // time(L,to) - time(L,from)
+            int lFrom = fromLandmark[fromBase + l];
+            int lTo = fromLandmark[toBase + l];
+            if (lFrom != UNREACHABLE) {
+                if (lTo == UNREACHABLE) {
+                    return Double.POSITIVE_INFINITY; // L reaches from, but not to, so from can't reach to
+                }
+                best = Math.max(best, lTo - lFrom);
+            }
+            // time(from,L) - time(to,L)
+            int fromL = toLandmark[fromBase + l];
+            int toL = toLandmark[toBase + l];
+            if (toL != UNREACHABLE) {
+                if (fromL == UNREACHABLE) {
+                    return Double.POSITIVE_INFINITY; // to reaches L, but from doesn't, so from can't reach to
+                }
+                best = Math.max(best, fromL - toL);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Farthest point sampling: start from the stop furthest from the first stop, then
+     * repeatedly add the stop whose distance to the nearest chosen landmark is largest.
+     */
+    private static int[] chooseLandmarks(GraphSnapshot graph, int k) {
+        int numStops = graph.numStops();
+        int[] chosen = new int[k];
+        if (k == 0) { return chosen; }
+        GisPoint[] points = new GisPoint[numStops];
+        for (int s = 0; s < numStops; s++) {
+            points[s] = graph.getStop(s).getPoint();
+        }
+        double[] nearest = new double[numStops];   // distance to the nearest landmark so far
+        double[] dists = new double[numStops];
+        points[0].distances(points, nearest);
+        chosen[0] = argMax(nearest);
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        for (int l = 0; l < k; l++) {
+            if (l > 0) {
+                chosen[l] = argMax(nearest);
+            }
+            points[chosen[l]].distances(points, dists);
+            for (int s = 0; s < numStops; s++) {
+                nearest[s] = Math.min(nearest[s], dists[s]);
+            }
+        }
+        return chosen;
+    }
+
+    private static int argMax(double[] values) {
+        int best = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[best]) { best = i; }
+        }
+        return best;
+    }
+
+    /**
+     * Dijkstra's algorithm over travel times only (no wait penalties), from the source
+     * stop to every stop, or (if backwards) from every stop to the source stop.
+     * Fills times with the travel time for each stop (UNREACHABLE if there is no path).
+     */
+    public static void travelTimes(GraphSnapshot graph, int source, boolean backwards,
+                                   int[] times, IndexedMinHeap fringe) {
+        Arrays.fill(times, 0, graph.numStops(), UNREACHABLE);
+        fringe.clear();
+        times[source] = 0;
+        fringe.offer(source, 0);
+        while (!fringe.isEmpty()) {
+            int current = fringe.poll();
+            int time = times[current];
+            if (backwards) {
+                for (int i = graph.firstInEdge(current); i < graph.endInEdge(current); i++) {
+                    int edge = graph.inEdge(i);
+                    relax(graph.source(edge), time + graph.travelTime(edge), times, fringe);
+                }
+            }
+            else {
+                for (int edge = graph.firstEdge(current); edge < graph.endEdge(current); edge++) {
+                    relax(graph.target(edge), time + graph.travelTime(edge), times, fringe);
+                }
+            }
+        }
+    }
+
+    private static void relax(int stop, int time, int[] times, IndexedMinHeap fringe) {
+        if (time < times[stop]) {
+            times[stop] = time;
+            fringe.offer(stop, time);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java.util.List;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
 
 /**
@@ -11,9 +12,11 @@ public class Line {
     private final String lineId;
     private final String transpType;   // one of "bus", "train", "cablecar", "ferry"
 
-    // paired lists with stop id and stop times.  need to make sure they remain in order
-    private List<Stop> stops;
-    private List<Integer> times;
+    // paired arrays with the stops and stop times.  need to make sure they remain in order
+    // only the first numStops entries are used; the arrays grow as stops are added
+    private Stop[] stops;
+    private int[] times;
+    private int numStops = 0;
 
 
 
@@ -21,8 +24,8 @@ public class Line {
     public Line(String lineId) {
         this.lineId = lineId;
         this.transpType = Transport.transpType(lineId);
-        this.stops = new ArrayList<Stop>();
-        this.times = new ArrayList<Integer>();
+        this.stops = new Stop[16];
+        this.times = new int[16];
         
     }
 
@@ -32,8 +35,13 @@ public class Line {
      * @param time  the time from the start of the line to the current stop
      */
     public void addStop(Stop stop, int time) {
-        this.stops.add(stop);
-        this.times.add(time);
+        if (numStops == stops.length) {
+            stops = Arrays.copyOf(stops, numStops * 2);
+            times = Arrays.copyOf(times, numStops * 2);
+        }
+        this.stops[numStops] = stop;
+        this.times[numStops] = time;
+        numStops++;
     }
 
     public String getId() {
@@ -47,7 +55,7 @@ public class Line {
     // to string
     public String toString() {
         String s = "";
-        s += "Line: " + lineId + " ("+transpType+")\t stops: " + stops.toString() + "\t times: " + times.toString();
+        s += "Line: " + lineId + " ("+transpType+")\t stops: " + getStops().toString() + "\t times: " + getTimes().toString();
         return s;
     }
 
@@ -55,23 +63,58 @@ public class Line {
      * Return the stops for each stop in the line.
      */
     public List<Stop> getStops() {
-        return Collections.unmodifiableList(stops);
+        return Collections.unmodifiableList(Arrays.asList(stops).subList(0, numStops));
     }
     /**
      * Return the times for each stop in the line.
      * @return the list of times in seconds
      */
     public List<Integer> getTimes() {
-        return  Collections.unmodifiableList(times);
+        return new AbstractList<Integer>() {
+            public Integer get(int i) {return getTime(i);}
+            public int size() {return numStops;}
+        };
+    }
+
+    //--------------------------------------------
+    //  Access by position along the line (no boxing or searching)
+    //--------------------------------------------
+
+    /** Return the number of stops on the line */
+    public int numStops() {
+        return numStops;
     }
+
+    /** Return the stop at position i along the line */
+    public Stop getStop(int i) {
+        if (i >= numStops) { throw new IndexOutOfBoundsException(i); }
+        return stops[i];
+    }
+
+    /** Return the time (in seconds from the start of the line) at position i along the line */
+    public int getTime(int i) {
+        if (i >= numStops) { throw new IndexOutOfBoundsException(i); }
+        return times[i];
+    }
+
+    /**
+     * Return the travel time in seconds of segment i of the line,
+     * from the stop at position i to the stop at position i+1.
+     */
+    public int getSegmentTime(int i) {
+        if (i + 1 >= numStops) { throw new IndexOutOfBoundsException(i); }
+        return times[i + 1] - times[i];
+    }
+
     /**
      * Returns the travel time in seconds between two consecutive stops on this line.
      * If the stops are not consecutive or not found, returns -1.
+     * (When the positions of the stops are known, getSegmentTime is much faster.)
      */
     public int getTravelTimeBetween(Stop from, Stop to) {
-        for (int i = 0; i < stops.size() - 1; i++) {
-            if (stops.get(i).equals(from) && stops.get(i + 1).equals(to)) {
-                return times.get(i + 1) - times.get(i);
+        for (int i = 0; i < numStops - 1; i++) {
+            if (stops[i].equals(from) && stops[i + 1].equals(to)) {
+                return times[i + 1] - times[i];
             }
         }
         return -1; // not consecutive or not found
@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A multi-criteria search, which finds all the Pareto optimal routes between two stops by
+ *  (travel time, number of transfers, walking distance), so that a route that walks
+ *  further to save a transfer can be shown next to the fastest one.
+ *  The travel time includes the wait penalties (as in AStar.pathTime), and the transfers
+ *  are the lines boarded after the first.
+ *
+ * It is a label setting search over the StateGraph of a snapshot (so the wait penalties are
+ *  exact): each state has a bag of labels, none of which is at least as good as another in
+ *  all three criteria (walking up to WALKING_TOLERANCE meters more still counts as at least
+ *  as good, so routes that only differ by a few meters don't each need a label).
+ *  The labels are taken from the queue in order of time (then transfers, then walking),
+ *  so a label is final when it is taken, unless a better one has replaced it.
+ *  The labels are kept in growable primitive arrays (a label is an int index), each bag is
+ *  a linked list through those arrays, and the queue is a binary heap of label indexes.
+ *
+ * The number of labels is bounded by
+ *  - only keeping routes that take at most maxExtraTime longer than the fastest one
+ *    (found first with AStar.findShortestPathExact), using the landmark lower bounds,
+ *  - dropping a label if a label at the goal is better in every criterion than the
+ *    best any route through it could do (target pruning),
+ *  - a limit on the number of rides, and
+ *  - a hard limit on the total number of labels (MAX_LABELS), after which the search
+ *    stops and the routes found so far are returned (isComplete() is then false).
+ */
+public class MultiCriteriaSearch {
+
+    public static final int DEFAULT_MAX_EXTRA_TIME = 30 * 60;  // seconds more than the fastest route
+    public static final int DEFAULT_MAX_RIDES = 5;
+    public static final int MAX_LABELS = 1 << 20;
+    public static final int WALKING_TOLERANCE = 50;  // meters of walking that are not worth another label
+
+    private static final int NONE = -1;
+
+    /**
+     * One Pareto optimal route
+     */
+    public static class Route {
+        private final int time;
+        private final int transfers;
+        private final int walkingDistance;
+        private final List<Edge> edges;
+
+        Route(int time, int transfers, int walkingDistance, List<Edge> edges) {
+            this.time = time;
+            this.transfers = transfers;
+            this.walkingDistance = walkingDistance;
+            this.edges = edges;
+        }
+
+        /** The travel time in seconds, including the wait penalties */
+        public int getTime() {return time;}
+
+        /** The number of lines boarded after the first one */
+        public int getTransfers() {return transfers;}
+
+        /** The total length of the walking edges, in meters */
+        public int getWalkingDistance() {return walkingDistance;}
+
+        public List<Edge> getEdges() {return edges;}
+
+        public String toString() {
+            return String.format("%d min, %d transfers, %d m walking", (time + 59) / 60, transfers, walkingDistance);
+        }
+    }
+
+    private final GraphSnapshot graph;
+    private final StateGraph states;
+    private final Landmarks landmarks;
+    private final int start;
+    private final int goal;
+    private final int maxExtraTime;
+    private final int maxRides;
+
+    // the label pool
+    private int numLabels = 0;
+    private int[] labelTime = new int[1024];
+    private byte[] labelRides = new byte[1024];
+    private int[] labelWalk = new int[1024];    // walking distance in meters
+    private int[] labelState = new int[1024];
+    private int[] labelArc = new int[1024];     // arc into the state (NONE at the start)
+    private int[] labelParent = new int[1024];  // label the arc came from (NONE at the start)
+    private int[] labelNext = new int[1024];    // next label in the same bag
+    private boolean[] labelDead = new boolean[1024];  // replaced by a better label
+
+    private final int[] bag;        // first label in the bag of each state (NONE if empty)
+    private int[] heap = new int[1024];
+    private int heapSize = 0;
+
+    private int timeLimit;
+    private boolean complete = true;
+    private final List<Route> routes = new ArrayList<Route>();
+
+    /**
+     * Find the Pareto optimal routes between two stops, with the default bounds
+     * (an empty list if start or goal are null or there is no route)
+     */
+    public static List<Route> findRoutes(Stop start, Stop goal) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null) {
+            return Collections.emptyList();
+        }
+        return new MultiCriteriaSearch(graph.freeze(), start.getIndex(), goal.getIndex(),
+                                       DEFAULT_MAX_EXTRA_TIME, DEFAULT_MAX_RIDES).getRoutes();
+    }
+
+    /**
+     * Find the Pareto optimal routes between two stops (given by their indexes) in a snapshot,
+     * that take at most maxExtraTime seconds longer than the fastest and ride at most maxRides lines
+     */
+    public MultiCriteriaSearch(GraphSnapshot graph, int start, int goal, int maxExtraTime, int maxRides) {
+        this.graph = graph;
+        this.states = graph.getStateGraph();
+        this.landmarks = graph.getLandmarks();
+        this.start = start;
+        this.goal = goal;
+        this.maxExtraTime = maxExtraTime;
+        this.maxRides = maxRides;
+        bag = new int[states.numStates()];
+        Arrays.fill(bag, NONE);
+        if (start == goal) {
+            routes.add(new Route(0, 0, 0, Collections.emptyList()));
+            return;
+        }
+        List<Edge> fastest = AStar.findShortestPathExact(graph, start, goal);
+        if (fastest == null) {
+            return;
+        }
+        timeLimit = AStar.pathTime(fastest) + maxExtraTime;
+        search();
+    }
+
+    public List<Route> getRoutes() {return routes;}
+
+    /** Whether the search finished (rather than stopping at MAX_LABELS) */
+    public boolean isComplete() {return complete;}
+
+    /** The number of labels made by the search */
+    public int numLabels() {return numLabels;}
+
+    private void search() {
+        // the journey can start on any of the edges at the start stop, with no penalty
+        for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+            int rides = isLine(x) ? 1 : 0;
+            addLabel(x, 0, rides, 0, NONE, NONE);
+        }
+        int target = states.hub(goal);
+        while (heapSize > 0) {
+            int label = poll();
+            if (labelDead[label]) { continue; }
+            int state = labelState[label];
+            if (state == target) { continue; }  // routes end at the goal
+            for (int arc = states.firstArc(state); arc < states.endArc(state); arc++) {
+                int next = states.arcTarget(arc);
+                int time = labelTime[label] + states.arcCost(arc);
+                int rides = labelRides[label];
+                int walk = labelWalk[label];
+                int edge = states.arcEdge(arc);
+                if (edge == StateGraph.NO_EDGE) {
+                    if (states.isHub(state) && isLine(next)) { rides++; }   // boarding a line
+                }
+                else if (graph.typeCode(edge) == Transport.WALKING_CODE) {
+                    walk += (int) Math.round(graph.getEdge(edge).distance());
+                }
+                if (rides > maxRides) { continue; }
+                if (numLabels == MAX_LABELS) {
+                    complete = false;
+                    heapSize = 0;
+                    break;
+                }
+                addLabel(next, time, rides, walk, arc, label);
+            }
+        }
+        // the bag compares rides (a route that has only walked can still board for free),
+        // but the routes are compared by transfers
+        List<Route> found = new ArrayList<Route>();
+        for (int label = bag[target]; label != NONE; label = labelNext[label]) {
+            found.add(makeRoute(label));
+        }
+        // by time, and then transfers and walking, so a route is never kept ahead of one
+        // that is as quick and better in the other criteria
+        found.sort(Comparator.comparingInt(Route::getTime).thenComparingInt(Route::getTransfers)
+                   .thenComparingInt(Route::getWalkingDistance));
+        for (Route route : found) {
+            if (routes.stream().noneMatch((Route other) -> other.getTransfers() <= route.getTransfers()
+                                          && other.getWalkingDistance() <= route.getWalkingDistance())) {
+                routes.add(route);
+            }
+        }
+    }
+
+    /** Whether a state is riding a line (rather than walking, or at a hub) */
+    private boolean isLine(int state) {
+        return !states.isHub(state) && states.keyOf(state) < graph.numLines();
+    }
+
+    /**
+     * Add a label to the bag of a state, unless it is out of bounds or a label in the bag
+     * (or at the goal) is at least as good; remove the labels it is better than
+     */
+    private void addLabel(int state, int time, int rides, int walk, int arc, int parent) {
+        double lowerBound = landmarks.lowerBound(states.stopOf(state), goal);
+        if (time + lowerBound > timeLimit) { return; }
+        int target = states.hub(goal);
+        int transfers = Math.max(rides - 1, 0);
+        for (int other = bag[target]; other != NONE; other = labelNext[other]) {
+            if (labelTime[other] <= time + lowerBound && Math.max(labelRides[other] - 1, 0) <= transfers
+                && labelWalk[other] <= walk + WALKING_TOLERANCE) {
+                return; // can't lead to a route that is better than one already found
+            }
+        }
+        int previous = NONE;
+        for (int other = bag[state]; other != NONE; other = labelNext[other]) {
+            if (labelTime[other] <= time && labelRides[other] <= rides && labelWalk[other] <= walk + WALKING_TOLERANCE) {
+                return;
+            }
+            if (time <= labelTime[other] && rides <= labelRides[other] && walk <= labelWalk[other] + WALKING_TOLERANCE) {
+                labelDead[other] = true;       // remove it from the bag (it stays in the heap, but is skipped)
+                if (previous == NONE) { bag[state] = labelNext[other]; }
+                else { labelNext[previous] = labelNext[other]; }
+            }
+            else {
+                previous = other;
+            }
+        }
+        int label = newLabel();
+        labelTime[label] = time;
+        labelRides[label] = (byte) rides;
+        labelWalk[label] = walk;
+        labelState[label] = state;
+        labelArc[label] = arc;
+        labelParent[label] = parent;
+        labelNext[label] = bag[state];
+        labelDead[label] = false;
+        bag[state] = label;
+        offer(label);
+    }
+
+    private int newLabel() {
+        if (numLabels == labelTime.length) {
+            int size = Math.min(2 * numLabels, MAX_LABELS);
+            labelTime = Arrays.copyOf(labelTime, size);
+            labelRides = Arrays.copyOf(labelRides, size);
+            labelWalk = Arrays.copyOf(labelWalk, size);
+            labelState = Arrays.copyOf(labelState, size);
+            labelArc = Arrays.copyOf(labelArc, size);
+            labelParent = Arrays.copyOf(labelParent, size);
+            labelNext = Arrays.copyOf(labelNext, size);
+            labelDead = Arrays.copyOf(labelDead, size);
+        }
+        return numLabels++;
+    }
+
+    private Route makeRoute(int goalLabel) {
+        List<Edge> edges = new ArrayList<Edge>();
+        for (int label = goalLabel; labelArc[label] != NONE; label = labelParent[label]) {
+            int edge = states.arcEdge(labelArc[label]);
+            if (edge != StateGraph.NO_EDGE) { edges.add(graph.getEdge(edge)); }
+        }
+        Collections.reverse(edges);
+        return new Route(labelTime[goalLabel], Math.max(labelRides[goalLabel] - 1, 0), labelWalk[goalLabel], edges);
+    }
+
+    //--------------------------------------------
+    //  The queue of labels: a binary heap ordered by time, then rides, then walking
+    //--------------------------------------------
+
+    private boolean before(int label1, int label2) {
+        if (labelTime[label1] != labelTime[label2]) { return labelTime[label1] < labelTime[label2]; }
+        if (labelRides[label1] != labelRides[label2]) { return labelRides[label1] < labelRides[label2]; }
+        return labelWalk[label1] < labelWalk[label2];
+    }
+
+    private void offer(int label) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, 2 * heapSize);
+        }
+        int pos = heapSize++;
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            if (!before(label, heap[parentPos])) { break; }
+            heap[pos] = heap[parentPos];
+            pos = parentPos;
+        }
+        heap[pos] = label;
+    }
+
+    private int poll() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int pos = 0;
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child])) { child++; }
+            if (!before(heap[child], last)) { break; }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        if (heapSize > 0) { heap[pos] = last; }
+        return top;
+    }
+}
@@ -43,6 +43,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
@@ -60,8 +61,13 @@ public class NetworkViewer {
     private Slider walkingDistanceSlider;
     private TextField startTextField;
     private TextField goalTextField;
+    private CheckBox isochroneCheckBox;
+    private Slider isochroneSlider;
+    private Label isochroneLabel;
+    private CheckBox statsCheckBox;
 
-    private static final int LIMIT_WALKING_DISTANCE = 500;
+    private static final int LIMIT_WALKING_DISTANCE = Graph.WALKING_LIMIT;
+    private static final int LIMIT_ISOCHRONE_MINUTES = 120;
 
     /**
      * Create the GUI, by constructing the Scene with its hierarchy of components.
@@ -87,6 +93,12 @@ public class NetworkViewer {
             startTextField = new TextField();
             goalTextField = new TextField();
 
+            isochroneCheckBox = new CheckBox("Show isochrone:");
+            isochroneSlider = new Slider(0, LIMIT_ISOCHRONE_MINUTES, 30);
+            isochroneLabel = new Label("30 min");
+
+            statsCheckBox = new CheckBox("Search stats");
+
             // Add the control elements to the controls Grid, giving column and row)
             controlsGrid.setAlignment(Pos.CENTER);
             controlsGrid.setHgap(10);
@@ -102,6 +114,11 @@ public class NetworkViewer {
             controlsGrid.add(startTextField,           2, 1);
             controlsGrid.add(goalTextField,            3, 1);
 
+            controlsGrid.add(isochroneCheckBox,        1, 2);
+            controlsGrid.add(isochroneSlider,          2, 2);
+            controlsGrid.add(isochroneLabel,           3, 2);
+            controlsGrid.add(statsCheckBox,            0, 2);
+
             //Set the handlers for the controls.
             reloadButton.setOnAction(this::handleReload);
             quitButton.setOnAction(this::handleQuit);
@@ -115,6 +132,10 @@ public class NetworkViewer {
             goalTextField.setOnAction(this::handleGoalAction);
             goalTextField.setOnKeyReleased(this::handleStartGoalKey);
 
+            isochroneCheckBox.setOnAction(this::handleIsochrone);
+            isochroneSlider.valueProperty().addListener((obs, oldValue, newValue) -> handleIsochroneSlider());
+            statsCheckBox.setOnAction(this::handleStats);
+
             mapCanvas.setOnMouseClicked(this::handleMouseClick);
             mapCanvas.setOnMouseDragged(this::handleMouseDrag);
             mapCanvas.setOnMousePressed(this::handleMousePressed);
@@ -158,6 +179,13 @@ public class NetworkViewer {
     private Stop startLocation;
     private Stop goalLocation;
     private List<Edge> pathEdges = null;    // List of edges forming a path to be displayed 
+    private SearchResult searchResult = null; // the result of the last search (for reporting a search that was stopped)
+    private boolean replanned = false;       // whether the path came from the graph's PathReplanner
+
+    // milliseconds before a search gives up, so that a slow search can't freeze the interface
+    private static final long SEARCH_TIME_BUDGET = 500;
+    // the part of it the PathReplanner gets, before the route cache's search takes over
+    private static final long REPAIR_TIME_BUDGET = SEARCH_TIME_BUDGET / 2;
 
 
 
@@ -236,14 +264,15 @@ public class NetworkViewer {
     // Setting the walking connections between stops
     // The maximum distance of a walking connection can be set by entering
     // the distance into the text field or using the slider.
-    // In either case, the program must remove all existing walking edges
-    // and create the new edges that are within the new maximum distance.
+    // In either case, the graph adds or removes just the walking edges whose
+    // distance is between the old and the new maximum distance, and the path
+    // between the current start and goal is repaired (see findPath).
     // --------------------------------------------
 
     /**
      *  Handles entering distance in the text field
      *  Sets the walking slider.
-     *  recomputes the walking edges
+     *  updates the walking edges
      */
     public void handleWalkingDistance(ActionEvent event) {
         double dist = walkingDistanceSlider.getValue();        
@@ -253,13 +282,11 @@ public class NetworkViewer {
         //System.out.println("Setting walking distance (in tf) to " + dist);
         walkingDistanceTextField.setText(Integer.toString((int)dist));
         walkingDistanceSlider.setValue(dist);         
-        graph.removeWalkingEdges();
         if (dist>=0){
-            graph.recomputeWalkingEdges(dist);
+            graph.setWalkingDistance(dist); // only adds or removes the edges that change
         } 
 
-        pathEdges = AStar.findShortestPath(startLocation, goalLocation);
-        resetSearch();
+        findPath(); // repairs the path between the same start and goal
 
         drawMap(graph);
     }
@@ -267,19 +294,17 @@ public class NetworkViewer {
     /**
      *  Handles entering distance on the walking slider.
      *  Sets the text field
-     *  recomputes the walking edges
+     *  updates the walking edges
      */
     public void handleWalkingDistanceSlider(MouseEvent event){
         double dist = Math.round(walkingDistanceSlider.getValue());
         walkingDistanceTextField.setText(Double.toString(dist));
         // System.out.println("Setting walking distance (on slider) to " + dist);
-        graph.removeWalkingEdges();
         if (dist>=0){
-            graph.recomputeWalkingEdges(dist);
+            graph.setWalkingDistance(dist); // only adds or removes the edges that change
         }
         
-        pathEdges = AStar.findShortestPath(startLocation, goalLocation);
-        resetSearch(); 
+        findPath(); // repairs the path between the same start and goal
         
         drawMap(graph);
     }
@@ -291,12 +316,63 @@ public class NetworkViewer {
      */
     public void resetSearch(){
         pathEdges = null;
+        searchResult = null;
+        replanned = false;
         setStartLocation(null);
         setGoalLocation(null);
     }
 
 
 
+    // ------------------------------------------
+    // Handling the UI: ISOCHRONE
+    // Shows the stops that can be reached from the start location within
+    // the time on the slider, coloured in bands of ISOCHRONE_BAND_MINUTES.
+    // The search is only redone if the start, the graph, or a larger time
+    // is needed; dragging the slider down just shows fewer of the stops.
+    // --------------------------------------------
+
+    private static final int ISOCHRONE_BAND_MINUTES = 10;
+    private Isochrone isochrone = null;   // the last isochrone computed
+
+    /** Handles turning the isochrone on or off */
+    public void handleIsochrone(ActionEvent event) {
+        drawMap(graph);
+        event.consume();
+    }
+
+    /** Handles moving the isochrone time slider */
+    public void handleIsochroneSlider() {
+        isochroneLabel.setText(Math.round(isochroneSlider.getValue()) + " min");
+        if (isochroneCheckBox.isSelected()) {
+            drawMap(graph);
+        }
+    }
+
+    /**
+     * The isochrone from the start location for the given budget (in seconds),
+     * reusing the last one if it was for the same start and graph and covers the budget
+     */
+    private Isochrone getIsochrone(int budget) {
+        if (startLocation == null) { return null; }
+        GraphSnapshot snapshot = graph.freeze();
+        if (isochrone == null || isochrone.getStart() != startLocation
+            || isochrone.getGraph() != snapshot || isochrone.getBudget() < budget) {
+            isochrone = new Isochrone(snapshot, startLocation.getIndex(), budget);
+        }
+        return isochrone;
+    }
+
+    /**
+     * Handles turning the search statistics on (with new, empty statistics) or off.
+     * While they are on, reportPath shows them under the path.
+     */
+    public void handleStats(ActionEvent event) {
+        AStar.setStats(statsCheckBox.isSelected() ? new SearchStats() : null);
+        reportPath();
+        event.consume();
+    }
+
     // --------------------------------------
     // Handling the UI: INVOKING THE PATH SEARCH
     //  Entering the start and goal places in the text fields
@@ -304,10 +380,12 @@ public class NetworkViewer {
     // --------------------------------------
 
 
+    private static final int MAX_MATCHES_SHOWN = 50; // number of matching stop names to list while typing
+
     /**
      * Key typing event for the Start text field
      *  Entering characters will display a list of the stops with
-     *  names matching the characters so far.
+     *  names matching the characters so far (the busiest stops first).
      */
     public void handleStartGoalKey(KeyEvent event) {
         // System.out.println("Look up event [" + event.getCode() + "]  "
@@ -315,10 +393,15 @@ public class NetworkViewer {
         //                    + ((TextField) event.getSource()).getText());
 
         if (event.getCode()!=KeyCode.ENTER && event.getCode()!=KeyCode.TAB){ // ENTER key was handled by handleStartAction
+            String prefix = ((TextField) event.getSource()).getText();
             StringBuilder names = new StringBuilder("");
-            for (Stop stop : (graph.getAllMatchingStops(((TextField) event.getSource()).getText()))){
+            for (Stop stop : (graph.getTopMatchingStops(prefix, MAX_MATCHES_SHOWN))){
                 names.append(stop.getName()).append("\n");
             }
+            int more = graph.countMatchingStops(prefix) - MAX_MATCHES_SHOWN;
+            if (more > 0){
+                names.append("... and ").append(more).append(" more\n");
+            }
             displayText.setText(names.toString());
         }
         event.consume();
@@ -336,7 +419,7 @@ public class NetworkViewer {
         setStartLocation(graph.getFirstMatchingStop(((TextField) event.getSource()).getText()));
         
         // perform A* search and get the path edges
-        pathEdges = AStar.findShortestPath(startLocation, goalLocation);
+        findPath();
 
         drawMap(graph); // redraw the graph with the new path
         event.consume();
@@ -354,7 +437,7 @@ public class NetworkViewer {
         setGoalLocation(graph.getFirstMatchingStop(((TextField) event.getSource()).getText()));
 
         // perform A* search and get the path edges
-        pathEdges = AStar.findShortestPath(startLocation, goalLocation);
+        findPath();
 
         drawMap(graph); // redraw the graph with the new path
         event.consume();
@@ -396,12 +479,43 @@ public class NetworkViewer {
             }
             
             // INFO: This is where your find path code is called during clicking
-            pathEdges = AStar.findShortestPath(startLocation, goalLocation);
+            findPath();
             drawMap(graph);
         }
         event.consume();
     }
 
+    /**
+     * Find the path between the start and goal locations, within about SEARCH_TIME_BUDGET.
+     * Once the graph's PathReplanner has been built (in the background, after loading),
+     * it finds the path, so that when the walking distance changes the path between the
+     * same start and goal is repaired rather than searched for again; it has
+     * REPAIR_TIME_BUDGET, and keeps its work if it runs out.
+     * Until the replanner is ready, or if it runs out of time, the path comes from the
+     * route cache's search in the rest of the budget; if that gives up too, the best
+     * partial path is shown instead.
+     */
+    private void findPath() {
+        searchResult = null;
+        replanned = false;
+        if (startLocation == null || goalLocation == null) {
+            pathEdges = null;
+            return;
+        }
+        long startTime = System.nanoTime();
+        PathReplanner replanner = graph.replannerIfBuilt();
+        if (replanner != null) {
+            searchResult = replanner.findShortestPath(startLocation, goalLocation, REPAIR_TIME_BUDGET, null);
+            replanned = searchResult.isComplete();
+        }
+        if (!replanned) {
+            long left = SEARCH_TIME_BUDGET - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            searchResult = graph.getRouteCache().findShortestPath(startLocation, goalLocation, Math.max(left, 1),
+                                                                  AStar.NO_SETTLED_LIMIT, null);
+        }
+        pathEdges = searchResult.isFound() ? searchResult.getPath() : searchResult.getPartialPath();
+    }
+
     /** Set start location and display it */
     public void setStartLocation(Stop stop){
         startLocation = stop;
@@ -417,26 +531,13 @@ public class NetworkViewer {
 
     /**
      * Find the closest stop to the given Gis Point location
-     * @param x
-     * @param y
+     * (uses the K-D tree in the graph)
+     * @param loc
      * @param graph
-     * @return
+     * @return the closest stop, or null if the graph has no stops
      */
     public Stop findClosestStop(GisPoint loc, Graph graph) {
-        double minDist = Double.MAX_VALUE;
-        Stop closestStop = null;
-        // This is slow but could be faster if you use a quadtree or K-D tree
-        for (Stop stop : graph.getStops()) {
-            double dist = stop.distanceTo(loc);
-            if (dist < minDist) {
-                minDist = dist;
-                closestStop = stop;
-            };
-        }
-        if (closestStop != null) {
-            return closestStop;
-        }
-        return null;
+        return graph.findClosestStop(loc);
     }
 
 
@@ -488,6 +589,9 @@ public class NetworkViewer {
     //  LOADING DATA FILES and CONSTRUCTING THE GRAPH
     // -----------------------------------------
 
+    // build the graph in parallel if there is more than one processor
+    private static final boolean PARALLEL_BUILD = Runtime.getRuntime().availableProcessors() > 1;
+
     /**
      * Load the stops and lines data from the given directory,
      * Load the fare zones data
@@ -512,7 +616,8 @@ public class NetworkViewer {
         }
 
         // Create the graph (ie, all the edges)
-        this.graph = new Graph(stopMap.values(), lines);
+        this.graph = new Graph(stopMap.values(), lines, PARALLEL_BUILD);
+        graph.buildReplannerInBackground();
 
         return true;
     }
@@ -646,6 +751,9 @@ public class NetworkViewer {
         }
         // Highlight Start and Goal nodes
         // (NOT NEEDED FOR PARTS 2 AND 3)
+        if (isochroneCheckBox.isSelected()) {
+            drawIsochrone();
+        }
         if (startLocation != null) {
             drawStop(startLocation, STOP_SIZE*2, Color.GREEN);
         }
@@ -680,16 +788,20 @@ public class NetworkViewer {
             pathText.append("START: ").append(startLocation.getName()).append("\n");
             pathText.append("GOAL:  ").append(goalLocation.getName()).append("\n");
 
+            boolean partial = searchResult != null && !searchResult.isComplete();
             if (pathEdges == null || pathEdges.isEmpty()){
                 if(startLocation == goalLocation){
                     pathText.append("Goal is same as Start; no path required");
                 }
+                else if (partial) {
+                    pathText.append("Search stopped before finding a path: ").append(searchResult);
+                }
                 else {
                     pathText.append("No path found");
                 }
             }
             else {
-                pathText.append("PATH:\n");
+                pathText.append(partial ? "PARTIAL PATH (" + searchResult + "):\n" : "PATH:\n");
                 Edge prevEdge = null;
                 for (Edge edge : pathEdges){
                     double edgeDistance = edge.distance();
@@ -712,12 +824,26 @@ public class NetworkViewer {
                     
                     prevEdge = edge;
                 }
-                pathText.append("  ENDING AT ").append(goalLocation.getName()).append("\n");
+                if (partial) {
+                    pathText.append("  SEARCH STOPPED AT ").append(prevEdge.toStop().getName()).append("\n");
+                }
+                else {
+                    pathText.append("  ENDING AT ").append(goalLocation.getName()).append("\n");
+                }
                 pathText.append(String.format("Total path distance = %.3f km", totalDistance / 1000));
                 pathText.append("\n");
                 pathText.append(String.format("Total time = %s", formatTime(totalTime)));  // Display total time
             }
         }
+        SearchStats stats = AStar.getStats();
+        if (stats != null) {
+            pathText.append("\n\n").append(stats);
+            if (graph != null) { pathText.append("\n").append(graph.getRouteCache()); }
+            if (replanned) {
+                pathText.append("\nPath replanner: ").append(graph.replannerIfBuilt().numExpanded())
+                    .append(" states expanded for the last path");
+            }
+        }
         displayText.setText(pathText.toString());
     }
     
@@ -856,6 +982,25 @@ public class NetworkViewer {
         gc.fillOval(point.getX() - size / 2, point.getY() - size / 2, size, size);
     }
 
+    /**
+     * Draw the stops reachable from the start location within the time on the isochrone
+     * slider, in colour bands from green (soonest) to red, and report how many there are.
+     */
+    public void drawIsochrone() {
+        int minutes = (int) Math.round(isochroneSlider.getValue());
+        Isochrone reachable = getIsochrone(minutes * 60);
+        if (reachable == null) { return; }
+        int count = reachable.countWithin(minutes * 60);
+        int numBands = Math.max(1, (minutes + ISOCHRONE_BAND_MINUTES - 1) / ISOCHRONE_BAND_MINUTES);
+        for (int i = 0; i < count; i++) {
+            int band = Math.min(reachable.getTime(i) / (ISOCHRONE_BAND_MINUTES * 60), numBands - 1);
+            double hue = (numBands == 1) ? 120 : 120.0 * (numBands - 1 - band) / (numBands - 1);
+            drawStop(reachable.getStop(i), STOP_SIZE * 1.5, Color.hsb(hue, 0.9, 0.9));
+        }
+        displayText.appendText("\n" + count + " stops reachable from " + startLocation.getName()
+                               + " within " + minutes + " minutes\n");
+    }
+
     /**
      * Draw the fare zones (if it exists)
      * This shows the outline of Wellington.
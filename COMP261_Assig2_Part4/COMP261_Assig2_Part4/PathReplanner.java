@@ -0,0 +1,400 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An incremental planner, which keeps its search between queries so that when the
+ *  walking distance changes, the path between the same start and goal is repaired
+ *  rather than searched for again from scratch.
+ *
+ * It is Lifelong Planning A* (LPA*, the fixed-start form of D* Lite) over the
+ *  StateGraph of Graph.freezeWalkingLimit(): a snapshot with every walking edge
+ *  up to WALKING_LIMIT, so the states and arcs never change. The Graph tells the
+ *  planner its new walking distance, and the walking arcs that are no longer (or are
+ *  now) in the graph are switched off (or on); only the states those arcs go to
+ *  are updated, and the next query expands just the states whose costs changed.
+ * Each state x has
+ *  - g(x), its cost as of the last expansion, and
+ *  - rhs(x), the best cost through its predecessors (0 for the start states),
+ *  and the queue holds the states where the two differ, with the key
+ *  (min(g,rhs) + h, min(g,rhs)), packed into one double.
+ * h is the landmark lower bound of the walking-limit snapshot, which is a lower bound
+ *  (and consistent) for every walking distance up to the limit, since walking edges
+ *  can only be removed from that snapshot.
+ * The costs from the start don't depend on the goal, so a new goal with the same
+ *  start only re-keys the queue; a new start starts a new search.
+ *
+ * Keys in the queue are only ever lowered in place; a key that has gone up is
+ *  corrected when its state reaches the top of the queue (as in D* Lite), and
+ *  states that have become consistent are skipped when they reach the top.
+ * When the walking distance is above WALKING_LIMIT, the graph has walking edges that
+ *  are not in the snapshot, so the queries go to the RouteCache instead.
+ *
+ * A query can be given a time budget and a CancellationToken (as in AStar). A search
+ *  that is stopped is left as it was, so the next query with the same start carries on
+ *  from where it stopped. The paths the planner finds are kept in the graph's
+ *  RouteCache (they are the same exact paths as AStar.findShortestPathExact finds), and
+ *  the work it does is recorded in AStar's SearchStats, if there are any.
+ */
+public class PathReplanner {
+
+    private static final int INF = Integer.MAX_VALUE;
+    private static final double KEY_SCALE = 1 << 24;  // more than any path cost (in seconds)
+
+    private final Graph graph;
+    private final GraphSnapshot snapshot;
+    private final StateGraph states;
+    private final Landmarks landmarks;
+
+    // the walking edges of the snapshot, sorted by distance, and how many are switched on
+    private final int[] walkingEdges;
+    private final double[] walkingDistances;
+    private int walkingCount = 0;
+    private boolean supported = false;       // false when the walking distance is over WALKING_LIMIT
+
+    private final int[] edgeArc;             // the ride arc of each snapshot edge
+    private final boolean[] arcEnabled;      // whether each arc is currently in the graph
+
+    private final int[] g;
+    private final int[] rhs;
+    private final IndexedMinHeap queue;
+    private final double[] bound;            // lower bound from each stop to the goal (NaN if not yet found)
+
+    private int start = -1;                  // the start and goal of the current search (-1 if none)
+    private int goal = -1;
+
+    // the work done by the last query, for SearchStats
+    private int expanded = 0;
+    private int pushes = 0;
+    private int decreaseKeys = 0;
+    private int relaxations = 0;
+    private int estimates = 0;
+
+    /**
+     * Make a planner for the graph, with the walking edges of its current walking distance
+     */
+    public PathReplanner(Graph graph) {
+        this.graph = graph;
+        snapshot = graph.freezeWalkingLimit();
+        states = snapshot.getStateGraph();
+        landmarks = snapshot.getLandmarks();
+
+        int count = 0;
+        for (int e = 0; e < snapshot.numEdges(); e++) {
+            if (snapshot.typeCode(e) == Transport.WALKING_CODE) { count++; }
+        }
+        Integer[] sorted = new Integer[count];
+        count = 0;
+        for (int e = 0; e < snapshot.numEdges(); e++) {
+            if (snapshot.typeCode(e) == Transport.WALKING_CODE) { sorted[count++] = e; }
+        }
+        Arrays.sort(sorted, (Integer e1, Integer e2) ->
+                    Double.compare(snapshot.getEdge(e1).distance(), snapshot.getEdge(e2).distance()));
+        walkingEdges = new int[count];
+        walkingDistances = new double[count];
+        for (int i = 0; i < count; i++) {
+            walkingEdges[i] = sorted[i];
+            walkingDistances[i] = snapshot.getEdge(sorted[i]).distance();
+        }
+
+        edgeArc = new int[snapshot.numEdges()];
+        arcEnabled = new boolean[states.numArcs()];
+        for (int a = 0; a < states.numArcs(); a++) {
+            int edge = states.arcEdge(a);
+            if (edge != StateGraph.NO_EDGE) { edgeArc[edge] = a; }
+            arcEnabled[a] = (edge == StateGraph.NO_EDGE || snapshot.typeCode(edge) != Transport.WALKING_CODE);
+        }
+
+        g = new int[states.numStates()];
+        rhs = new int[states.numStates()];
+        queue = new IndexedMinHeap(states.numStates());
+        bound = new double[snapshot.numStops()];
+        setWalkingDistance(graph.getWalkingDistance());
+    }
+
+    /**
+     * Return the shortest path between two stops of the graph (as from
+     * AStar.findShortestPathExact), repairing the last search if it had the same start.
+     */
+    public List<Edge> findShortestPath(Stop startStop, Stop goalStop) {
+        return findShortestPath(startStop, goalStop, AStar.NO_TIME_LIMIT, null).getPath();
+    }
+
+    /**
+     * Return the shortest path between two stops of the graph as a SearchResult, from the
+     * RouteCache if it has been found before in the current generation of the graph, or
+     * else by repairing the last search, within the given time budget (see AStar).
+     * A search that is stopped reports no partial path, and just the landmark bound
+     * from the start to the goal as its lower bound.
+     */
+    public synchronized SearchResult findShortestPath(Stop startStop, Stop goalStop, long timeBudgetMillis,
+                                                      CancellationToken token) {
+        expanded = 0;
+        if (Graph.commonGraph(startStop, goalStop) != graph) {
+            return AStar.findShortestPathExact(startStop, goalStop, timeBudgetMillis, AStar.NO_SETTLED_LIMIT, token);
+        }
+        if (!supported) {
+            return graph.getRouteCache().findShortestPath(startStop, goalStop, timeBudgetMillis,
+                                                          AStar.NO_SETTLED_LIMIT, token);
+        }
+        return graph.getRouteCache().findShortestPath(startStop, goalStop, () ->
+            repair(startStop.getIndex(), goalStop.getIndex(), timeBudgetMillis, token));
+    }
+
+    /**
+     * Repair the last search (or start a new one) for the given start and goal,
+     * within the budget, and record the work done
+     */
+    private SearchResult repair(int startStop, int goalStop, long timeBudgetMillis, CancellationToken token) {
+        if (startStop == goalStop) {
+            return SearchResult.found(new ArrayList<Edge>());
+        }
+        SearchStats searchStats = AStar.getStats();
+        boolean timed = timeBudgetMillis != AStar.NO_TIME_LIMIT;
+        boolean clocked = timed || searchStats != null;
+        long startTime = clocked ? System.nanoTime() : 0;
+        pushes = decreaseKeys = relaxations = estimates = 0;
+        if (startStop != start) {
+            startSearch(startStop, goalStop);
+        }
+        else if (goalStop != goal) {
+            changeGoal(goalStop);
+        }
+        SearchResult.Status status = computeShortestPath(timed, startTime, TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis),
+                                                         token);
+        long elapsed = clocked ? System.nanoTime() - startTime : 0;
+        if (searchStats != null) {
+            searchStats.record(expanded, pushes, decreaseKeys, relaxations, estimates, elapsed);
+        }
+        if (status != null) {
+            return new SearchResult(status, null, new ArrayList<Edge>(), landmarks.lowerBound(start, goal),
+                                    expanded, elapsed);
+        }
+        List<Edge> path = reconstructPath();
+        if (path == null) {
+            return new SearchResult(SearchResult.Status.NOT_FOUND, null, null, Double.POSITIVE_INFINITY,
+                                    expanded, elapsed);
+        }
+        return new SearchResult(SearchResult.Status.FOUND, path, null, g[states.hub(goal)], expanded, elapsed);
+    }
+
+    /** The number of states expanded by the last query */
+    public int numExpanded() {return expanded;}
+
+    /**
+     * Switch the walking edges on or off to match a new walking distance
+     * (called by the Graph whenever its walking edges change).
+     * Only the states that the changed walking arcs go to are updated.
+     */
+    synchronized void setWalkingDistance(double walkingDistance) {
+        if (walkingDistance > Graph.WALKING_LIMIT) {
+            supported = false;
+            return;
+        }
+        supported = true;
+        int newCount = countWalkingWithin(walkingDistance);
+        for (int i = walkingCount; i < newCount; i++) {
+            setArc(edgeArc[walkingEdges[i]], true);
+        }
+        for (int i = walkingCount - 1; i >= newCount; i--) {
+            setArc(edgeArc[walkingEdges[i]], false);
+        }
+        walkingCount = newCount;
+    }
+
+    /** The number of walking edges that are at most walkingDistance long */
+    private int countWalkingWithin(double walkingDistance) {
+        int lo = 0;
+        int hi = walkingDistances.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (walkingDistances[mid] <= walkingDistance) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return lo;
+    }
+
+    /**
+     * Switch an arc on or off, and update the state it goes to
+     */
+    private void setArc(int arc, boolean enabled) {
+        arcEnabled[arc] = enabled;
+        if (start < 0) { return; }
+        int from = states.arcSource(arc);
+        int to = states.arcTarget(arc);
+        if (g[from] == INF) { return; }
+        int cost = g[from] + states.arcCost(arc);
+        if (enabled) {
+            lowerRhs(to, cost);
+        }
+        else if (rhs[to] == cost && !isStartState(to)) {
+            rhs[to] = bestRhs(to);
+            update(to);
+        }
+    }
+
+    //--------------------------------------------
+    //  LPA*
+    //--------------------------------------------
+
+    /** Forget the last search, and start a new one from the ride states of the start */
+    private void startSearch(int startStop, int goalStop) {
+        start = startStop;
+        goal = goalStop;
+        Arrays.fill(bound, Double.NaN);
+        Arrays.fill(g, INF);
+        Arrays.fill(rhs, INF);
+        queue.clear();
+        for (int x = states.firstRideState(start); x < states.endRideState(start); x++) {
+            rhs[x] = 0;
+            update(x);
+        }
+    }
+
+    /** Change the goal: the costs stay the same, but the keys in the queue must be recomputed */
+    private void changeGoal(int goalStop) {
+        goal = goalStop;
+        Arrays.fill(bound, Double.NaN);
+        int[] waiting = new int[queue.size()];
+        int count = 0;
+        while (!queue.isEmpty()) {
+            waiting[count++] = queue.poll();
+        }
+        for (int i = 0; i < count; i++) {
+            update(waiting[i]);
+        }
+    }
+
+    /**
+     * Expand states until the goal's cost is known, or the budget runs out
+     * (checked between expansions, so the search can carry on later).
+     * Returns null if it finished, or why it stopped (see AStar.checkBudget)
+     */
+    private SearchResult.Status computeShortestPath(boolean timed, long startTime, long budgetNanos,
+                                                    CancellationToken token) {
+        int target = states.hub(goal);
+        while (!queue.isEmpty()) {
+            double top = queue.peekPriority();
+            // alighting costs nothing, so a state with the same key as the goal
+            // can still change the goal's cost, and must be expanded too
+            if (top > key(target) && g[target] == rhs[target]) { break; }
+            SearchResult.Status status = AStar.checkBudget(expanded, AStar.NO_SETTLED_LIMIT, timed, startTime,
+                                                           budgetNanos, token);
+            if (status != null) {
+                return status;
+            }
+            int x = queue.poll();
+            if (g[x] == rhs[x]) { continue; }   // became consistent after it was queued
+            double newKey = key(x);
+            if (top < newKey) {                // its key has gone up since it was queued
+                offer(x, newKey);
+                continue;
+            }
+            expanded++;
+            relaxations += states.endArc(x) - states.firstArc(x);
+            if (g[x] > rhs[x]) {
+                g[x] = rhs[x];
+                for (int arc = states.firstArc(x); arc < states.endArc(x); arc++) {
+                    if (arcEnabled[arc]) { lowerRhs(states.arcTarget(arc), g[x] + states.arcCost(arc)); }
+                }
+            }
+            else {
+                int old = g[x];
+                g[x] = INF;
+                update(x);
+                for (int arc = states.firstArc(x); arc < states.endArc(x); arc++) {
+                    int next = states.arcTarget(arc);
+                    if (arcEnabled[arc] && rhs[next] == old + states.arcCost(arc) && !isStartState(next)) {
+                        rhs[next] = bestRhs(next);
+                        update(next);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Lower rhs of a state to cost (if that is lower) */
+    private void lowerRhs(int x, int cost) {
+        if (cost < rhs[x] && !isStartState(x)) {
+            rhs[x] = cost;
+            update(x);
+        }
+    }
+
+    /** The best cost of a state through its predecessors */
+    private int bestRhs(int x) {
+        int best = INF;
+        for (int i = states.firstInArc(x); i < states.endInArc(x); i++) {
+            int arc = states.inArc(i);
+            int from = states.arcSource(arc);
+            if (arcEnabled[arc] && g[from] != INF) {
+                best = Math.min(best, g[from] + states.arcCost(arc));
+            }
+        }
+        return best;
+    }
+
+    /** Put a state in the queue if it is inconsistent (states that are consistent are skipped later) */
+    private void update(int x) {
+        if (g[x] != rhs[x]) {
+            offer(x, key(x));
+        }
+    }
+
+    /** Add a state to the queue, or lower its key (counting which, for SearchStats) */
+    private void offer(int x, double key) {
+        boolean queued = queue.contains(x);
+        if (queue.offer(x, key)) {
+            if (queued) { decreaseKeys++; }
+            else { pushes++; }
+        }
+    }
+
+    private double key(int x) {
+        int cost = Math.min(g[x], rhs[x]);
+        if (cost == INF) { return Double.POSITIVE_INFINITY; }
+        int stop = states.stopOf(x);
+        if (Double.isNaN(bound[stop])) {
+            bound[stop] = landmarks.lowerBound(stop, goal);
+            estimates++;
+        }
+        return (cost + bound[stop]) * KEY_SCALE + cost;
+    }
+
+    private boolean isStartState(int x) {
+        return states.stopOf(x) == start && !states.isHub(x);
+    }
+
+    /**
+     * Follow the arcs back from the goal through states whose cost is the cost
+     * of their predecessor plus the arc (null if the goal can't be reached)
+     */
+    private List<Edge> reconstructPath() {
+        int x = states.hub(goal);
+        if (g[x] == INF) { return null; }
+        List<Edge> path = new ArrayList<Edge>();
+        for (int steps = 0; !(isStartState(x) && g[x] == 0); steps++) {
+            if (steps == states.numStates()) {
+                throw new IllegalStateException("PathReplanner: no path back to the start");
+            }
+            int previous = -1;
+            for (int i = states.firstInArc(x); i < states.endInArc(x) && previous < 0; i++) {
+                int arc = states.inArc(i);
+                int from = states.arcSource(arc);
+                if (arcEnabled[arc] && g[from] != INF && g[from] + states.arcCost(arc) == g[x]) {
+                    previous = from;
+                    if (states.arcEdge(arc) != StateGraph.NO_EDGE) { path.add(snapshot.getEdge(states.arcEdge(arc))); }
+                }
+            }
+            if (previous < 0) {
+                throw new IllegalStateException("PathReplanner: no path back to the start");
+            }
+            x = previous;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+}
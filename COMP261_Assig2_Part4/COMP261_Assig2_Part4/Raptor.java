@@ -0,0 +1,625 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A round-based (RAPTOR style) transit router, which scans whole lines at a time
+ *  instead of searching edge by edge.
+ *
+ * Round k finds the cheapest way to reach each stop with at most k rides:
+ *  - every line through a stop that was improved in round k-1 is scanned once, in order,
+ *    from the first such stop, carrying the cheapest cost of being on the line, and
+ *  - then the walking edges are followed from the stops the lines improved (as far as
+ *    walking on improves the stops).
+ * The costs are the ones AStar minimises: the travel times plus the wait penalty
+ *  whenever the journey changes line or transport type (but not on the first edge).
+ *  The data only has the times from the start of each line (no timetables), so every
+ *  ride can start as soon as the stop is reached, and the "arrival time" at a stop is
+ *  the cost of getting there. Since getting off a line and walking costs a penalty but
+ *  walking on costs nothing, each stop has two labels per round: arriving on a line,
+ *  and arriving on foot.
+ * The cost to the goal after each round gives the Pareto optimal journeys by
+ *  (arrival time, number of rides): each extra ride is only worth it if it is faster.
+ *  The last of them is the fastest journey, which is the same cost as the exact searches.
+ * A label is only recorded if it could still lead to a cheaper journey than the best
+ *  one found so far (using the landmark lower bounds to the goal, as in A*), and if the
+ *  other label of the stop doesn't already do at least as well.
+ *
+ * The lines are stored as flat arrays of positions (one position for each stop of each
+ *  line, with the line's time at that stop), with the positions at each stop indexed,
+ *  so a round only reads consecutive array entries.
+ *  The labels of all the rounds are stored in flat arrays (round * numStops + stop),
+ *  reused from one query to the next by each thread.
+ */
+public class Raptor {
+
+    public static final int MAX_ROUNDS = 16;     // most rides in a journey
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+    private static final int START = -1;         // parent label of the start of the journey
+    private static final int RIDE = 0;           // label types
+    private static final int WALK = 1;
+
+    private final GraphSnapshot graph;
+    private final int numStops;
+
+    private final int[] routeStart;     // positions of line r are routeStart[r] .. routeStart[r+1]-1
+    private final int[] positionStop;   // stop at each position
+    private final int[] positionTime;   // time from the start of the line at each position
+    private final int[] positionEdge;   // snapshot edge from each position to the next one on the line
+    private final int[] positionRoute;  // line of each position
+    private final boolean[] routeRepeats; // whether each line visits some stop more than once
+
+    private final int[] stopStart;      // positions at stop s are stopPositions[stopStart[s]] .. stopPositions[stopStart[s+1]-1]
+    private final int[] stopPositions;
+
+    private final int[] walkStart;      // walking edges out of stop s are walkEdges[walkStart[s]] .. walkEdges[walkStart[s+1]-1]
+    private final int[] walkEdges;
+
+    private final ThreadLocal<Labels> labels;
+
+    /**
+     * One journey from a query: its cost, number of rides, and edges
+     */
+    public static class Journey {
+        private final int time;
+        private final int rides;
+        private final List<Edge> edges;
+
+        Journey(int time, int rides, List<Edge> edges) {
+            this.time = time;
+            this.rides = rides;
+            this.edges = edges;
+        }
+
+        /** The travel time in seconds, including the wait penalties */
+        public int getTime() {return time;}
+
+        /** The number of lines ridden (0 for a journey that only walks) */
+        public int getRides() {return rides;}
+
+        /** The number of changes from one line to another */
+        public int getTransfers() {return Math.max(rides - 1, 0);}
+
+        public List<Edge> getEdges() {return edges;}
+
+        public String toString() {
+            return time + "s, " + rides + " rides, " + edges.size() + " edges";
+        }
+    }
+
+    /**
+     * Build the flat arrays of the lines and walking edges of a snapshot
+     */
+    public Raptor(GraphSnapshot graph) {
+        this.graph = graph;
+        numStops = graph.numStops();
+        int numRoutes = graph.numLines();
+
+        // the positions of the lines, with the snapshot edge of each segment
+        routeStart = new int[numRoutes + 1];
+        for (int r = 0; r < numRoutes; r++) {
+            routeStart[r + 1] = routeStart[r] + graph.getLine(r).numStops();
+        }
+        int numPositions = routeStart[numRoutes];
+        positionStop = new int[numPositions];
+        positionTime = new int[numPositions];
+        positionEdge = new int[numPositions];
+        positionRoute = new int[numPositions];
+        boolean[] used = new boolean[graph.numEdges()];  // a line may have the same segment more than once
+        for (int r = 0; r < numRoutes; r++) {
+            Line line = graph.getLine(r);
+            for (int i = 0; i < line.numStops(); i++) {
+                int pos = routeStart[r] + i;
+                positionStop[pos] = line.getStop(i).getIndex();
+                positionRoute[pos] = r;
+                positionEdge[pos] = StateGraph.NO_EDGE;
+            }
+            for (int i = 0; i + 1 < line.numStops(); i++) {
+                int pos = routeStart[r] + i;
+                int edge = findLineEdge(r, positionStop[pos], positionStop[pos + 1], used);
+                positionEdge[pos] = edge;
+                positionTime[pos + 1] = positionTime[pos] + graph.travelTime(edge);
+            }
+        }
+
+        // the lines that visit a stop more than once
+        routeRepeats = new boolean[numRoutes];
+        int[] lastRoute = new int[numStops];
+        Arrays.fill(lastRoute, -1);
+        for (int pos = 0; pos < numPositions; pos++) {
+            if (lastRoute[positionStop[pos]] == positionRoute[pos]) { routeRepeats[positionRoute[pos]] = true; }
+            lastRoute[positionStop[pos]] = positionRoute[pos];
+        }
+
+        // the positions at each stop
+        stopStart = new int[numStops + 1];
+        for (int pos = 0; pos < numPositions; pos++) {
+            stopStart[positionStop[pos] + 1]++;
+        }
+        for (int s = 0; s < numStops; s++) {
+            stopStart[s + 1] += stopStart[s];
+        }
+        stopPositions = new int[numPositions];
+        int[] next = Arrays.copyOf(stopStart, numStops);
+        for (int pos = 0; pos < numPositions; pos++) {
+            stopPositions[next[positionStop[pos]]++] = pos;
+        }
+
+        // the walking edges out of each stop
+        walkStart = new int[numStops + 1];
+        for (int s = 0; s < numStops; s++) {
+            walkStart[s + 1] = walkStart[s];
+            for (int e = graph.firstEdge(s); e < graph.endEdge(s); e++) {
+                if (graph.typeCode(e) == Transport.WALKING_CODE) { walkStart[s + 1]++; }
+            }
+        }
+        walkEdges = new int[walkStart[numStops]];
+        int w = 0;
+        for (int s = 0; s < numStops; s++) {
+            for (int e = graph.firstEdge(s); e < graph.endEdge(s); e++) {
+                if (graph.typeCode(e) == Transport.WALKING_CODE) { walkEdges[w++] = e; }
+            }
+        }
+
+        labels = ThreadLocal.withInitial(() -> new Labels(numStops, numRoutes));
+    }
+
+    /** The snapshot edge of line r from one stop to the next that has not been used yet */
+    private int findLineEdge(int route, int from, int to, boolean[] used) {
+        for (int e = graph.firstEdge(from); e < graph.endEdge(from); e++) {
+            if (graph.lineId(e) == route && graph.target(e) == to && !used[e]) {
+                used[e] = true;
+                return e;
+            }
+        }
+        throw new IllegalStateException("No edge for line " + graph.getLine(route).getId());
+    }
+
+    public GraphSnapshot getGraph() {return graph;}
+
+    /**
+     * The Pareto optimal journeys between two stops, by (time, rides),
+     * in order of increasing rides (and decreasing time).
+     * Returns an empty list if start or goal are null or there is no journey.
+     */
+    public static List<Journey> findJourneys(Stop start, Stop goal) {
+        Graph graph = Graph.commonGraph(start, goal);
+        if (graph == null) {
+            return Collections.emptyList();
+        }
+        return graph.freeze().getRaptor().findJourneys(start.getIndex(), goal.getIndex(), MAX_ROUNDS);
+    }
+
+    /**
+     * The fastest journey between two stops, as a list of edges (like AStar.findShortestPath),
+     * or null if there is none
+     */
+    public static List<Edge> findShortestPath(Stop start, Stop goal) {
+        List<Journey> journeys = findJourneys(start, goal);
+        return journeys.isEmpty() ? null : journeys.get(journeys.size() - 1).getEdges();
+    }
+
+    /**
+     * The Pareto optimal journeys between two stops (given by their indexes) with at
+     * most maxRounds rides, in order of increasing rides (and decreasing time).
+     */
+    public List<Journey> findJourneys(int start, int goal, int maxRounds) {
+        if (start == goal) {
+            return List.of(new Journey(0, 0, Collections.emptyList()));
+        }
+        Labels space = labels.get();
+        space.ensureRounds(maxRounds + 1);
+        space.startQuery(graph.getLandmarks());
+        int rounds = search(space, start, goal, maxRounds);
+
+        List<Journey> journeys = new ArrayList<Journey>();
+        int best = INFINITY;
+        for (int k = 0; k <= rounds; k++) {
+            int label = space.bestLabel(k, goal);
+            if (label != START && space.cost(label) < best) {
+                best = space.cost(label);
+                journeys.add(reconstruct(space, label));
+            }
+        }
+        return journeys;
+    }
+
+    /**
+     * Run the rounds, until no stop is improved or maxRounds is reached.
+     * Returns the number of the last round.
+     */
+    private int search(Labels space, int start, int goal, int maxRounds) {
+        space.startRound(0);
+        space.mark(start);
+        // round 0: walking from the start (the first edge has no penalty)
+        relaxWalking(space, 0, start, 0, START, goal);
+        walk(space, 0, goal);
+
+        int k = 0;
+        while (space.numMarked > 0 && k < maxRounds) {
+            k++;
+            space.startRound(k);
+            collectRoutes(space);
+            for (int i = 0; i < space.numQueued; i++) {
+                scanRoute(space, k, space.queued[i], start, goal);
+            }
+            // walk on from the stops that a line improved (walking marks more stops)
+            int improved = space.numMarked;
+            for (int i = 0; i < improved; i++) {
+                int stop = space.marked[i];
+                int ride = space.index(k, stop);
+                if (space.rideCost[ride] + AStar.WAIT_PENALTY >= space.walkCost[ride]) { continue; } // can walk on from here for less
+                relaxWalking(space, k, stop, space.rideCost[ride] + AStar.WAIT_PENALTY, label(ride, RIDE), goal);
+            }
+            walk(space, k, goal);
+        }
+        while (space.numMarked > 0) {
+            space.isMarked[space.marked[--space.numMarked]] = false;
+        }
+        return k;
+    }
+
+    /**
+     * The lines through the marked stops, with the first marked position on each
+     * (the marks are then cleared, ready for the stops improved in this round)
+     */
+    private void collectRoutes(Labels space) {
+        space.numQueued = 0;
+        for (int i = 0; i < space.numMarked; i++) {
+            int stop = space.marked[i];
+            space.isMarked[stop] = false;
+            for (int j = stopStart[stop]; j < stopStart[stop + 1]; j++) {
+                int pos = stopPositions[j];
+                int route = positionRoute[pos];
+                if (space.firstPosition[route] < 0) {
+                    space.queued[space.numQueued++] = route;
+                    space.firstPosition[route] = pos;
+                }
+                else if (pos < space.firstPosition[route]) {
+                    space.firstPosition[route] = pos;
+                }
+            }
+        }
+        space.numMarked = 0;
+    }
+
+    /**
+     * Scan a line from its first marked position, boarding wherever that is cheaper than
+     * staying on, and record the stops where arriving on the line is an improvement.
+     * On a line that visits a stop more than once (eg a loop), a rider can carry on from
+     * any of the visits with no penalty (the edges all have the same line), so the line
+     * is scanned again from the start as long as that makes a visit cheaper.
+     */
+    private void scanRoute(Labels space, int k, int route, int start, int goal) {
+        int from = space.firstPosition[route];
+        space.firstPosition[route] = -1;
+        boolean repeats = routeRepeats[route];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int boardPos = -1;
+            int boardBase = INFINITY;     // cost at boarding, less the line's time at the boarding position
+            int boardLabel = START;
+            for (int pos = from; pos < routeStart[route + 1]; pos++) {
+                int stop = positionStop[pos];
+                if (repeats && space.lineCost[stop] != INFINITY
+                    && space.lineCost[stop] - positionTime[pos] < boardBase) {
+                    // carry on from an earlier (cheaper) visit to this stop
+                    boardPos = space.lineBoard[stop];
+                    boardBase = space.lineCost[stop] - positionTime[pos];
+                    boardLabel = space.lineLabel[stop];
+                }
+                if (boardPos >= 0) {
+                    int arrival = boardBase + positionTime[pos];
+                    int ride = space.index(k, stop);
+                    // (arriving on foot for no more is at least as good)
+                    if (arrival < space.rideCost[ride] && arrival < space.walkCost[ride]
+                        && space.canImprove(arrival, stop, k, goal)) {
+                        space.rideCost[ride] = arrival;
+                        space.rideBoard[ride] = boardPos;
+                        space.rideAlight[ride] = pos;
+                        space.rideParent[ride] = boardLabel;
+                        space.mark(stop);
+                    }
+                    if (repeats && arrival < space.lineCost[stop]) {
+                        space.setLineCost(stop, arrival, boardPos, boardLabel);
+                        changed = true;
+                    }
+                }
+                // the cost of boarding here, from what was reached with one ride less
+                int cost;
+                int label;
+                if (stop == start) {
+                    cost = 0;     // no penalty for the first edge of the journey
+                    label = START;
+                }
+                else {
+                    label = space.bestLabel(k - 1, stop);
+                    if (label == START) { continue; }   // not reached yet
+                    cost = space.cost(label) + AStar.WAIT_PENALTY;
+                }
+                if (cost - positionTime[pos] < boardBase) {
+                    boardPos = pos;
+                    boardBase = cost - positionTime[pos];
+                    boardLabel = label;
+                }
+            }
+            from = routeStart[route];
+        }
+        if (repeats) {
+            space.clearLineCosts();
+        }
+    }
+
+    /**
+     * Offer the stops at the end of the walking edges out of a stop,
+     * at the given cost of starting to walk from it
+     */
+    private void relaxWalking(Labels space, int k, int stop, int cost, int parent, int goal) {
+        for (int i = walkStart[stop]; i < walkStart[stop + 1]; i++) {
+            int edge = walkEdges[i];
+            int next = graph.target(edge);
+            int arrival = cost + graph.travelTime(edge);
+            int walk = space.index(k, next);
+            // (arriving on a line for a penalty less is at least as good)
+            if (arrival < space.walkCost[walk] && arrival - AStar.WAIT_PENALTY < space.rideCost[walk]
+                && space.canImprove(arrival, next, k, goal) && next != stop) {
+                space.walkCost[walk] = arrival;
+                space.walkEdge[walk] = edge;
+                space.walkParent[walk] = parent;
+                space.queueWalk(next);
+                space.mark(next);
+            }
+        }
+    }
+
+    /**
+     * Walk on from the stops in the walking queue, until no stop can be reached on foot
+     * any cheaper. A stop is walked from again if it is improved after it was walked from
+     * (most walks are only one edge, so this is cheaper than keeping a priority queue).
+     */
+    private void walk(Labels space, int k, int goal) {
+        while (space.walkCount > 0) {
+            int stop = space.pollWalk();
+            int walk = space.index(k, stop);
+            relaxWalking(space, k, stop, space.walkCost[walk], label(walk, WALK), goal);
+        }
+    }
+
+    /** Follow the parent labels back from a label at the goal */
+    private Journey reconstruct(Labels space, int goalLabel) {
+        List<Edge> path = new ArrayList<Edge>();
+        int rides = 0;
+        for (int label = goalLabel; label != START; ) {
+            int index = label >> 1;
+            if ((label & 1) == RIDE) {
+                addRide(path, space.rideBoard[index], space.rideAlight[index]);
+                rides++;
+                label = space.rideParent[index];
+            }
+            else {
+                path.add(graph.getEdge(space.walkEdge[index]));
+                label = space.walkParent[index];
+            }
+        }
+        Collections.reverse(path);
+        return new Journey(space.cost(goalLabel), rides, path);
+    }
+
+    /**
+     * Add the edges of a ride (in reverse) from one position to another on the same line.
+     * If the line visits a stop more than once, the ride may have gone round from one
+     * visit to another, so the cheapest way along the line is found again, by repeatedly
+     * scanning it (in the same way as scanRoute).
+     */
+    private void addRide(List<Edge> path, int boardPos, int alightPos) {
+        int route = positionRoute[boardPos];
+        if (!routeRepeats[route]) {
+            for (int pos = alightPos - 1; pos >= boardPos; pos--) {
+                path.add(graph.getEdge(positionEdge[pos]));
+            }
+            return;
+        }
+        int first = routeStart[route];
+        int length = routeStart[route + 1] - first;
+        int[] cost = new int[length];      // cheapest cost of being at each position
+        int[] previous = new int[length];  // the position that was there before (-1 at boarding)
+        Arrays.fill(cost, INFINITY);
+        cost[boardPos - first] = 0;
+        previous[boardPos - first] = -1;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < length; i++) {
+                if (i > 0 && cost[i - 1] != INFINITY
+                    && cost[i - 1] + positionTime[first + i] - positionTime[first + i - 1] < cost[i]) {
+                    cost[i] = cost[i - 1] + positionTime[first + i] - positionTime[first + i - 1];
+                    previous[i] = i - 1;
+                    changed = true;
+                }
+                for (int j = 0; j < length; j++) {   // other visits to the same stop
+                    if (cost[j] < cost[i] && positionStop[first + j] == positionStop[first + i]) {
+                        cost[i] = cost[j];
+                        previous[i] = j;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        for (int i = alightPos - first; previous[i] >= 0; i = previous[i]) {
+            if (previous[i] == i - 1) {
+                path.add(graph.getEdge(positionEdge[first + i - 1]));
+            }
+        }
+    }
+
+    private static int label(int index, int type) {
+        return (index << 1) | type;
+    }
+
+    /**
+     * The labels of all the rounds for one thread, and the scratch space for a query
+     */
+    private static class Labels {
+        final int numStops;
+        int[] rideCost;    // indexed by round * numStops + stop
+        int[] rideBoard;   // position where the line was boarded
+        int[] rideAlight;  // position where the line was left
+        int[] rideParent;  // label boarded from
+        int[] walkCost;
+        int[] walkEdge;    // the last walking edge
+        int[] walkParent;  // label walked from
+
+        final boolean[] isMarked;   // stops improved in the current round
+        final int[] marked;
+        int numMarked = 0;
+        final int[] firstPosition;  // first marked position on each line (-1 if none)
+        final int[] queued;         // lines to scan in the current round
+        int numQueued = 0;
+        final int[] walkQueue;      // stops to walk on from (a circular queue)
+        final boolean[] isQueued;
+        int walkHead = 0;
+        int walkCount = 0;
+
+        Landmarks landmarks;
+        final int[] bound;          // lower bound from each stop to the goal (in the current query)
+        final int[] boundQuery;     // the query in which the bound was worked out
+        int query = 0;
+
+        final int[] lineCost;       // cheapest cost of being on the line being scanned at each stop
+        final int[] lineBoard;      //  (only for lines that visit a stop more than once)
+        final int[] lineLabel;
+        final int[] lineStops;      // the stops with a lineCost
+        int numLineStops = 0;
+
+        Labels(int numStops, int numRoutes) {
+            this.numStops = numStops;
+            isMarked = new boolean[numStops];
+            marked = new int[numStops];
+            firstPosition = new int[numRoutes];
+            Arrays.fill(firstPosition, -1);
+            queued = new int[numRoutes];
+            walkQueue = new int[numStops];
+            isQueued = new boolean[numStops];
+            bound = new int[numStops];
+            boundQuery = new int[numStops];
+            lineCost = new int[numStops];
+            Arrays.fill(lineCost, INFINITY);
+            lineBoard = new int[numStops];
+            lineLabel = new int[numStops];
+            lineStops = new int[numStops];
+            ensureRounds(MAX_ROUNDS + 1);
+        }
+
+        void ensureRounds(int rounds) {
+            if (rideCost != null && rideCost.length >= rounds * numStops) { return; }
+            int size = rounds * numStops;
+            rideCost = new int[size];
+            rideBoard = new int[size];
+            rideAlight = new int[size];
+            rideParent = new int[size];
+            walkCost = new int[size];
+            walkEdge = new int[size];
+            walkParent = new int[size];
+        }
+
+        void startQuery(Landmarks landmarks) {
+            this.landmarks = landmarks;
+            query++;
+            if (query == Integer.MAX_VALUE) { // start again rather than let the stamps wrap around
+                Arrays.fill(boundQuery, 0);
+                query = 1;
+            }
+        }
+
+        /**
+         * Whether reaching a stop at the given cost could still lead to a cheaper journey
+         * to the goal than the best one so far (using the landmark lower bounds, as in A*)
+         */
+        boolean canImprove(int cost, int stop, int k, int goal) {
+            if (boundQuery[stop] != query) {
+                double lowerBound = landmarks.lowerBound(stop, goal);
+                bound[stop] = (lowerBound == Double.POSITIVE_INFINITY) ? INFINITY : (int) lowerBound;
+                boundQuery[stop] = query;
+            }
+            return (long) cost + bound[stop] < goalCost(k, goal);
+        }
+
+        /** Start round k with the labels of round k-1 (or no labels for round 0) */
+        void startRound(int k) {
+            int from = (k - 1) * numStops;
+            int to = k * numStops;
+            if (k == 0) {
+                Arrays.fill(rideCost, 0, numStops, INFINITY);
+                Arrays.fill(walkCost, 0, numStops, INFINITY);
+                return;
+            }
+            System.arraycopy(rideCost, from, rideCost, to, numStops);
+            System.arraycopy(rideBoard, from, rideBoard, to, numStops);
+            System.arraycopy(rideAlight, from, rideAlight, to, numStops);
+            System.arraycopy(rideParent, from, rideParent, to, numStops);
+            System.arraycopy(walkCost, from, walkCost, to, numStops);
+            System.arraycopy(walkEdge, from, walkEdge, to, numStops);
+            System.arraycopy(walkParent, from, walkParent, to, numStops);
+        }
+
+        void setLineCost(int stop, int cost, int boardPos, int label) {
+            if (lineCost[stop] == INFINITY) { lineStops[numLineStops++] = stop; }
+            lineCost[stop] = cost;
+            lineBoard[stop] = boardPos;
+            lineLabel[stop] = label;
+        }
+
+        void clearLineCosts() {
+            while (numLineStops > 0) {
+                lineCost[lineStops[--numLineStops]] = INFINITY;
+            }
+        }
+
+        void queueWalk(int stop) {
+            if (!isQueued[stop]) {
+                isQueued[stop] = true;
+                int tail = walkHead + walkCount++;
+                walkQueue[(tail < walkQueue.length) ? tail : tail - walkQueue.length] = stop;
+            }
+        }
+
+        int pollWalk() {
+            int stop = walkQueue[walkHead];
+            walkHead = (walkHead + 1 < walkQueue.length) ? walkHead + 1 : 0;
+            walkCount--;
+            isQueued[stop] = false;
+            return stop;
+        }
+
+        int index(int k, int stop) {
+            return k * numStops + stop;
+        }
+
+        void mark(int stop) {
+            if (!isMarked[stop]) {
+                isMarked[stop] = true;
+                marked[numMarked++] = stop;
+            }
+        }
+
+        int cost(int label) {
+            return ((label & 1) == RIDE) ? rideCost[label >> 1] : walkCost[label >> 1];
+        }
+
+        /** The cheaper label of a stop in round k (START if it has not been reached) */
+        int bestLabel(int k, int stop) {
+            int index = index(k, stop);
+            if (rideCost[index] == INFINITY && walkCost[index] == INFINITY) { return START; }
+            return (walkCost[index] <= rideCost[index]) ? label(index, WALK) : label(index, RIDE);
+        }
+
+        /** The cost of the best journey to the goal found so far */
+        int goalCost(int k, int goal) {
+            int index = index(k, goal);
+            return Math.min(rideCost[index], walkCost[index]);
+        }
+    }
+}
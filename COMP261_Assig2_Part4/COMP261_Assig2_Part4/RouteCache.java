@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of the paths found by AStar (in its exact mode), or by the graph's
+ *  PathReplanner (which finds the same paths), so that asking for the same route again
+ *  (eg redrawing after a click, or a repeated server request) doesn't search again.
+ *
+ * The paths are keyed by (start id, goal id, walking distance, graph generation).
+ *  The generation of a Graph goes up every time its edges change, so a path found
+ *  before a change can never be returned after it; the Graph also invalidates its
+ *  cache when that happens, so the old paths don't use up the space.
+ * When the cache is full, the least recently used path is evicted
+ *  (a LinkedHashMap in access order).
+ * "No path" (null) is cached as well, since it is as expensive to find as a path.
+ *
+ * All the methods are synchronized, but the searches are done outside the lock,
+ *  so several threads can search at once (and may occasionally find the same path).
+ */
+public class RouteCache {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    // marks a cached null (a new list, so it is never the same object as a real empty path)
+    private static final List<Edge> NO_PATH = Collections.unmodifiableList(new ArrayList<Edge>());
+
+    private record Key(String start, String goal, double walkingDistance, long generation) {}
+
+    private final Graph graph;
+    private final int capacity;
+    private final LinkedHashMap<Key, List<Edge>> paths;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public RouteCache(Graph graph, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+        this.graph = graph;
+        this.capacity = capacity;
+        this.paths = new LinkedHashMap<Key, List<Edge>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<Edge>> eldest) {
+                if (size() > RouteCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the shortest path between two stops of the graph (as from AStar.findShortestPathExact),
+     * from the cache if it has been found before in the current generation of the graph.
+     * The paths returned can't be modified.
+     */
+    public List<Edge> findShortestPath(Stop start, Stop goal) {
+        if (Graph.commonGraph(start, goal) != graph) {
+            return AStar.findShortestPathExact(start, goal);
+        }
+        Key key;
+        synchronized (this) {
+            key = new Key(start.getId(), goal.getId(), graph.getWalkingDistance(), graph.getGeneration());
+            List<Edge> path = paths.get(key);
+            if (path != null) {
+                hits++;
+                return (path == NO_PATH) ? null : path;
+            }
+            misses++;
+        }
+        List<Edge> path = AStar.findShortestPathExact(start, goal);
+        path = (path == null) ? null : Collections.unmodifiableList(path);
+        synchronized (this) {
+            // only keep it if the graph has not changed during the search
+            if (key.generation() == graph.getGeneration()) {
+                paths.put(key, (path == null) ? NO_PATH : path);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Return the shortest path between two stops of the graph as a SearchResult, from the
+     * cache if it has been found before, or else from AStar.findShortestPathExact within
+     * the given budget (see AStar). Only the results of searches that finished are cached.
+     */
+    public SearchResult findShortestPath(Stop start, Stop goal, long timeBudgetMillis, int maxSettled,
+                                         CancellationToken token) {
+        if (Graph.commonGraph(start, goal) != graph) {
+            return AStar.findShortestPathExact(start, goal, timeBudgetMillis, maxSettled, token);
+        }
+        return findShortestPath(start, goal, () -> AStar.findShortestPathExact(start, goal, timeBudgetMillis,
+                                                                                 maxSettled, token));
+    }
+
+    /**
+     * Return the shortest path between two stops of the graph as a SearchResult, from the
+     * cache if it has been found before, or else from the given search, which must find
+     * exact shortest paths (eg the PathReplanner's). Only the results of searches that
+     * finished are cached.
+     */
+    SearchResult findShortestPath(Stop start, Stop goal, Supplier<SearchResult> search) {
+        Key key;
+        synchronized (this) {
+            key = new Key(start.getId(), goal.getId(), graph.getWalkingDistance(), graph.getGeneration());
+            List<Edge> path = paths.get(key);
+            if (path != null) {
+                hits++;
+                return (path == NO_PATH) ? SearchResult.notFound() : SearchResult.found(path);
+            }
+            misses++;
+        }
+        SearchResult result = search.get();
+        if (result.isComplete()) {
+            List<Edge> path = result.isFound() ? Collections.unmodifiableList(result.getPath()) : NO_PATH;
+            synchronized (this) {
+                if (key.generation() == graph.getGeneration()) {
+                    paths.put(key, path);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all the paths (called by the Graph when its edges change)
+     */
+    public synchronized void invalidate() {
+        paths.clear();
+    }
+
+    public int getCapacity() {return capacity;}
+    public synchronized int size() {return paths.size();}
+    public synchronized long getHits() {return hits;}
+    public synchronized long getMisses() {return misses;}
+    public synchronized long getEvictions() {return evictions;}
+
+    /** The fraction of lookups that were found in the cache */
+    public synchronized double hitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized String toString() {
+        return String.format("RouteCache: %d/%d paths, %d hits, %d misses, %d evictions",
+                             paths.size(), capacity, hits, misses, evictions);
+    }
+}
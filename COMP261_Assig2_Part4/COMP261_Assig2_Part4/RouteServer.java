@@ -0,0 +1,396 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A headless route query server, using the JDK's built in HttpServer.
+ * It loads a data directory (with NetworkViewer.loadStops and loadLines), builds and
+ *  freezes the Graph, and then answers requests concurrently. All answers are JSON.
+ *
+ *   GET  /route?from=STOPID&to=STOPID
+ *   GET  /route?fromLat=..&fromLon=..&toLat=..&toLon=..   (routes between the closest stops)
+ *   GET  /nearest?lat=..&lon=..&k=..                      (the k closest stops, k defaults to 1)
+ *   POST /batch   with one "FROMID TOID" pair per line    (an array of routes, in the same order)
+ *   GET  /stats                                           (the hits, misses and evictions of the route cache)
+ * /route and /batch take an optional budget=MILLISECONDS (the time allowed for the whole
+ *  request). Each route has a status (found, not_found, budget_exceeded or cancelled);
+ *  a route whose search ran out of time has the best partial path and a lower bound on its
+ *  time instead of a path. The searches that are still waiting to run when the time is up
+ *  are cancelled, so however busy the server is, the searching for a request ends within
+ *  (about) its budget, and only reading the request and writing the answer come on top.
+ *
+ * Each request is handled on its own virtual thread (or, on a JDK without virtual
+ *  threads, on a thread from a pool). The searches themselves are run on a fixed pool
+ *  of one thread per processor, so that each search thread keeps its SearchSpace
+ *  (which is per thread) from one search to the next; a batch is spread over the pool.
+ * The graph is never changed once the server has started, so the searches can share it,
+ *  and the paths found are kept in the graph's RouteCache for repeated requests.
+ *
+ * Usage: java RouteServer DATA_DIRECTORY [PORT] [WALKING_DISTANCE]
+ */
+public class RouteServer {
+
+    public static final int DEFAULT_PORT = 8261;
+    public static final int MAX_NEAREST = 100;       // most stops a /nearest request may ask for
+    public static final int MAX_BATCH = 10000;       // most pairs in one /batch request
+    public static final long DEFAULT_ROUTE_BUDGET = 1000;   // milliseconds for a /route request
+    public static final long DEFAULT_BATCH_BUDGET = 60000;  // milliseconds for a /batch request
+    public static final long MAX_BUDGET = 600000;           // most milliseconds a request may ask for
+    private static final long GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(50); // for a search to stop itself
+
+    private final Graph graph;
+    private final Map<String, Stop> stopsById;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final ExecutorService searchExecutor;
+
+    /**
+     * Load the data and set up (but don't start) a server on the given port.
+     * Walking edges are added if walkingDistance is more than 0.
+     */
+    public RouteServer(Path dataDirectory, int port, double walkingDistance) throws IOException {
+        if (!dataDirectory.resolve("stops.txt").toFile().exists() ||
+            !dataDirectory.resolve("lines.txt").toFile().exists()){
+            throw new IOException("Directory does not contain the required data files: " + dataDirectory);
+        }
+        stopsById = NetworkViewer.loadStops(dataDirectory.resolve("stops.txt"));
+        Collection<Line> lines = NetworkViewer.loadLines(dataDirectory.resolve("lines.txt"), stopsById);
+        graph = new Graph(stopsById.values(), lines, true);
+        if (walkingDistance > 0) {
+            graph.setWalkingDistance(walkingDistance);
+        }
+        graph.freeze().getLandmarks(); // build the landmark tables now, rather than in the first request
+
+        requestExecutor = newRequestExecutor();
+        searchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/route", exchange -> handle(exchange, "GET", this::route));
+        server.createContext("/nearest", exchange -> handle(exchange, "GET", this::nearest));
+        server.createContext("/batch", exchange -> handle(exchange, "POST", this::batch));
+        server.createContext("/stats", exchange -> handle(exchange, "GET", this::stats));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        requestExecutor.shutdown();
+        searchExecutor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * A virtual thread per request if the JDK has virtual threads (Java 21 on),
+     * otherwise a cached thread pool.
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    //--------------------------------------------
+    //  Requests
+    //--------------------------------------------
+
+    /** Computes the JSON answer to a request */
+    private interface Handler {
+        String answer(Map<String, String> params, String body) throws Exception;
+    }
+
+    /** A request that can't be answered, with the HTTP status to send back */
+    private static class RequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        int status = 200;
+        String answer;
+        try {
+            if (!method.equals(exchange.getRequestMethod())) {
+                throw new RequestException(405, "use " + method);
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            answer = handler.answer(parseQuery(exchange.getRequestURI().getRawQuery()), body);
+        } catch (RequestException e) {
+            status = e.status;
+            answer = "{\"error\":" + quote(e.getMessage()) + "}";
+        } catch (Exception e) {
+            status = 500;
+            answer = "{\"error\":" + quote(String.valueOf(e)) + "}";
+        }
+        byte[] bytes = answer.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /** /route : the shortest path between two stops */
+    private String route(Map<String, String> params, String body) throws Exception {
+        long deadline = deadline(params, DEFAULT_ROUTE_BUDGET);
+        Stop from = findStop(params, "from");
+        Stop to = findStop(params, "to");
+        CancellationToken token = new CancellationToken();
+        SearchResult result = await(searchExecutor.submit(() -> findPath(from, to, deadline, token)), deadline, token);
+        StringBuilder json = new StringBuilder();
+        appendRoute(json, from, to, result);
+        return json.toString();
+    }
+
+    /** /nearest : the stops closest to a point */
+    private String nearest(Map<String, String> params, String body) {
+        GisPoint point = new GisPoint(number(params, "lon"), number(params, "lat"));
+        int k = params.containsKey("k") ? (int) number(params, "k") : 1;
+        if (k < 1 || k > MAX_NEAREST) {
+            throw new RequestException(400, "k must be between 1 and " + MAX_NEAREST);
+        }
+        StringBuilder json = new StringBuilder("{\"stops\":[");
+        List<Stop> stops = graph.findClosestStops(point, k);
+        for (int i = 0; i < stops.size(); i++) {
+            if (i > 0) { json.append(','); }
+            json.append("{\"stop\":");
+            appendStop(json, stops.get(i));
+            json.append(",\"distance\":").append(Math.round(stops.get(i).distanceTo(point))).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /** /batch : the shortest paths between many pairs of stops, searched in parallel */
+    private String batch(Map<String, String> params, String body) throws InterruptedException {
+        long deadline = deadline(params, DEFAULT_BATCH_BUDGET);
+        List<Stop[]> pairs = new ArrayList<Stop[]>();
+        for (String line : body.split("\n")) {
+            String[] ids = line.trim().split("[\\s,]+");
+            if (ids.length == 1 && ids[0].isEmpty()) { continue; }
+            if (ids.length != 2) {
+                throw new RequestException(400, "each line must have two stop ids: " + line.trim());
+            }
+            pairs.add(new Stop[]{stopById(ids[0]), stopById(ids[1])});
+            if (pairs.size() > MAX_BATCH) {
+                throw new RequestException(400, "a batch can have at most " + MAX_BATCH + " pairs");
+            }
+        }
+        CancellationToken token = new CancellationToken();
+        List<Future<SearchResult>> results = new ArrayList<Future<SearchResult>>();
+        for (Stop[] pair : pairs) {
+            results.add(searchExecutor.submit(() -> findPath(pair[0], pair[1], deadline, token)));
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < pairs.size(); i++) {
+            if (i > 0) { json.append(','); }
+            appendRoute(json, pairs.get(i)[0], pairs.get(i)[1], await(results.get(i), deadline, token));
+        }
+        return json.append(']').toString();
+    }
+
+    /** /stats : the counters of the route cache */
+    private String stats(Map<String, String> params, String body) {
+        RouteCache cache = graph.getRouteCache();
+        return "{\"cache\":{\"size\":" + cache.size() + ",\"capacity\":" + cache.getCapacity()
+            + ",\"hits\":" + cache.getHits() + ",\"misses\":" + cache.getMisses()
+            + ",\"evictions\":" + cache.getEvictions() + "}}";
+    }
+
+    /**
+     * Find a path in the time left before the deadline (a System.nanoTime),
+     * unless the time is already up or the token has been cancelled
+     */
+    private SearchResult findPath(Stop from, Stop to, long deadline, CancellationToken token) {
+        long timeLeft = deadline - System.nanoTime();
+        if (timeLeft <= 0) {
+            return SearchResult.notStarted(SearchResult.Status.BUDGET_EXCEEDED);
+        }
+        if (token.isCancelled()) {
+            return SearchResult.notStarted(SearchResult.Status.CANCELLED);
+        }
+        return graph.getRouteCache().findShortestPath(from, to, TimeUnit.NANOSECONDS.toMillis(timeLeft),
+                                                      AStar.NO_SETTLED_LIMIT, token);
+    }
+
+    /**
+     * Wait for a search until the deadline (and a little grace for it to stop itself).
+     * If it still hasn't finished, cancel the token, so that it (and any other search of
+     * the same request that is still waiting) stops without doing any more work.
+     */
+    private static SearchResult await(Future<SearchResult> result, long deadline, CancellationToken token)
+        throws InterruptedException {
+        try {
+            return result.get(Math.max(deadline + GRACE_NANOS - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            token.cancel();
+            return SearchResult.notStarted(SearchResult.Status.BUDGET_EXCEEDED);
+        } catch (ExecutionException e) {
+            throw new RequestException(500, String.valueOf(e.getCause()));
+        }
+    }
+
+    /** The deadline (as a System.nanoTime) of a request, from its budget parameter or the default */
+    private static long deadline(Map<String, String> params, long defaultBudget) {
+        long budget = params.containsKey("budget") ? (long) number(params, "budget") : defaultBudget;
+        if (budget < 1 || budget > MAX_BUDGET) {
+            throw new RequestException(400, "budget must be between 1 and " + MAX_BUDGET + " milliseconds");
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
+    /**
+     * The stop given by the parameter NAME (a stop id), or else the stop closest to
+     * the point given by the parameters NAMELat and NAMELon.
+     */
+    private Stop findStop(Map<String, String> params, String name) {
+        if (params.containsKey(name)) {
+            return stopById(params.get(name));
+        }
+        GisPoint point = new GisPoint(number(params, name + "Lon"), number(params, name + "Lat"));
+        return graph.findClosestStop(point);
+    }
+
+    private Stop stopById(String id) {
+        Stop stop = stopsById.get(id);
+        if (stop == null) {
+            throw new RequestException(404, "no stop with id " + id);
+        }
+        return stop;
+    }
+
+    private static double number(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new RequestException(400, "missing parameter " + name);
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "parameter " + name + " is not a number: " + value);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) { return params; }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                try {
+                    params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                               URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    throw new RequestException(400, "malformed query parameter: " + param);
+                }
+            }
+        }
+        return params;
+    }
+
+    //--------------------------------------------
+    //  Writing JSON
+    //--------------------------------------------
+
+    private static void appendRoute(StringBuilder json, Stop from, Stop to, SearchResult result) {
+        json.append("{\"from\":");
+        appendStop(json, from);
+        json.append(",\"to\":");
+        appendStop(json, to);
+        json.append(",\"status\":").append(quote(result.getStatus().name().toLowerCase()));
+        json.append(",\"found\":").append(result.isFound());
+        if (result.isFound()) {
+            json.append(",\"time\":").append(AStar.pathTime(result.getPath())).append(",\"edges\":");
+            appendEdges(json, result.getPath());
+        }
+        else if (!result.isComplete()) {
+            json.append(",\"lowerBound\":").append(Math.round(result.getLowerBound())).append(",\"partial\":");
+            appendEdges(json, result.getPartialPath());
+        }
+        json.append('}');
+    }
+
+    private static void appendEdges(StringBuilder json, List<Edge> path) {
+        json.append('[');
+        for (int i = 0; i < path.size(); i++) {
+            Edge edge = path.get(i);
+            if (i > 0) { json.append(','); }
+            json.append("{\"from\":").append(quote(edge.fromStop().getId()))
+                .append(",\"to\":").append(quote(edge.toStop().getId()))
+                .append(",\"type\":").append(quote(edge.transpType()))
+                .append(",\"line\":").append(edge.line() == null ? "null" : quote(edge.line().getId()))
+                .append(",\"time\":").append(edge.getTravelTime())
+                .append(",\"distance\":").append(Math.round(edge.distance()))
+                .append('}');
+        }
+        json.append(']');
+    }
+
+    private static void appendStop(StringBuilder json, Stop stop) {
+        json.append("{\"id\":").append(quote(stop.getId()))
+            .append(",\"name\":").append(quote(stop.getName()))
+            .append(",\"lat\":").append(stop.getPoint().getLat())
+            .append(",\"lon\":").append(stop.getPoint().getLon())
+            .append('}');
+    }
+
+    private static String quote(String text) {
+        StringBuilder str = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') { str.append('\\').append(c); }
+            else if (c < ' ') { str.append(String.format("\\u%04x", (int) c)); }
+            else { str.append(c); }
+        }
+        return str.append('"').toString();
+    }
+
+    //--------------------------------------------
+    //  Running the server
+    //--------------------------------------------
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java RouteServer DATA_DIRECTORY [PORT] [WALKING_DISTANCE]");
+            return;
+        }
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        double walkingDistance = (args.length > 2) ? Double.parseDouble(args[2]) : 0;
+        RouteServer routeServer = new RouteServer(Paths.get(args[0]), port, walkingDistance);
+        routeServer.start();
+        System.out.println("Loaded " + routeServer.getGraph().getStops().size() + " stops and "
+                           + routeServer.getGraph().getEdges().size() + " edges");
+        System.out.println("Route server listening on port " + routeServer.getPort());
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a bounded route search (see AStar): whether it found a path, showed
+ *  that there is none, or was stopped (by its time or settled stops budget, or by its
+ *  CancellationToken) before it could tell.
+ * A search that was stopped still reports the best of its partial paths: the path to
+ *  the settled stop (or state) with the lowest estimate of the time left to the goal.
+ *  It also reports a lower bound on the cost of the shortest path: for
+ *  AStar.findShortestPathExact, the lowest estimated total cost on its fringe when it
+ *  stopped (its heuristic is admissible); for AStar.findShortestPath, which doesn't keep
+ *  exact costs, only the landmark bound from the start to the goal.
+ */
+public class SearchResult {
+
+    public enum Status { FOUND, NOT_FOUND, BUDGET_EXCEEDED, CANCELLED }
+
+    private final Status status;
+    private final List<Edge> path;         // the path if FOUND, otherwise null
+    private final List<Edge> partialPath;  // the best partial path if stopped, otherwise null
+    private final double lowerBound;
+    private final int settled;
+    private final long elapsedNanos;
+
+    SearchResult(Status status, List<Edge> path, List<Edge> partialPath, double lowerBound,
+                 int settled, long elapsedNanos) {
+        this.status = status;
+        this.path = path;
+        this.partialPath = partialPath;
+        this.lowerBound = lowerBound;
+        this.settled = settled;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /** A result for a path that was found without a search (eg, from a cache) */
+    static SearchResult found(List<Edge> path) {
+        return new SearchResult(Status.FOUND, path, null, AStar.pathTime(path), 0, 0);
+    }
+
+    /** A result for a query that has no path, without a search */
+    static SearchResult notFound() {
+        return new SearchResult(Status.NOT_FOUND, null, null, Double.POSITIVE_INFINITY, 0, 0);
+    }
+
+    /** A result for a search that was stopped before it started (eg, while it was waiting to run) */
+    static SearchResult notStarted(Status status) {
+        return new SearchResult(status, null, new ArrayList<Edge>(), 0, 0, 0);
+    }
+
+    public Status getStatus() {return status;}
+
+    public boolean isFound() {return status == Status.FOUND;}
+
+    /** Whether the search finished (found a path, or showed there is none) */
+    public boolean isComplete() {return status == Status.FOUND || status == Status.NOT_FOUND;}
+
+    /** The shortest path (only if FOUND; null otherwise) */
+    public List<Edge> getPath() {return path;}
+
+    /**
+     * The best partial path from the start, if the search was stopped
+     * (empty if it stopped before settling anything but the start; null if it finished)
+     */
+    public List<Edge> getPartialPath() {return partialPath;}
+
+    /**
+     * A lower bound on the cost of the shortest path if the search was stopped
+     * (the cost of the path if FOUND, infinity if NOT_FOUND)
+     */
+    public double getLowerBound() {return lowerBound;}
+
+    /** The number of stops (or states) the search settled */
+    public int getSettled() {return settled;}
+
+    /** The time the search took, in nanoseconds (0 if it was not timed) */
+    public long getElapsedNanos() {return elapsedNanos;}
+
+    public String toString() {
+        switch (status) {
+            case FOUND: return "found a path of " + path.size() + " edges, cost " + Math.round(lowerBound);
+            case NOT_FOUND: return "no path";
+            default: return status + " after " + settled + " settled; partial path of "
+                + partialPath.size() + " edges, cost at least " + Math.round(lowerBound);
+        }
+    }
+}
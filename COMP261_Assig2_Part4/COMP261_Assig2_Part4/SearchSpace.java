@@ -0,0 +1,108 @@
+/**
+ * Scratch space for a search over the stops of a GraphSnapshot (by stop index):
+ * the cost so far, back pointer edge and heuristic estimate of each stop,
+ * which stops have been settled, and the fringe (an IndexedMinHeap).
+ *
+ * The arrays are reused from one search to the next. Instead of clearing them,
+ *  each search gets a new generation number, and an entry only counts as set if
+ *  it was stamped with the current generation, so starting a search is O(1).
+ *
+ * A SearchSpace must only be used by one search at a time;
+ *  forThread gives each thread its own.
+ */
+public class SearchSpace {
+
+    private static final ThreadLocal<SearchSpace> PER_THREAD = ThreadLocal.withInitial(() -> new SearchSpace(0));
+
+    private int generation = 0;
+    private int[] reachedIn;    // generation in which each stop was first reached
+    private int[] settledIn;    // generation in which each stop was settled
+    private double[] cost;      // cheapest known cost to each stop
+    private int[] backEdge;     // edge number of the best known edge into each stop (-1 for the start)
+    private double[] estimate;  // heuristic estimate from each stop to the goal
+    private IndexedMinHeap fringe;
+
+    public SearchSpace(int numStops) {
+        allocate(numStops);
+    }
+
+    /**
+     * Return the search space for the current thread, ready for a new search
+     * over numStops stops.
+     */
+    public static SearchSpace forThread(int numStops) {
+        SearchSpace space = PER_THREAD.get();
+        space.startSearch(numStops);
+        return space;
+    }
+
+    private void allocate(int numStops) {
+        reachedIn = new int[numStops];
+        settledIn = new int[numStops];
+        cost = new double[numStops];
+        backEdge = new int[numStops];
+        estimate = new double[numStops];
+        fringe = new IndexedMinHeap(numStops);
+        generation = 0;
+    }
+
+    /**
+     * Get ready for a new search over numStops stops
+     * (only allocates if the arrays are too small)
+     */
+    public void startSearch(int numStops) {
+        if (reachedIn.length < numStops) {
+            allocate(numStops);
+        }
+        fringe.clear();
+        generation++;
+        if (generation == Integer.MAX_VALUE) { // start again rather than let the stamps wrap around
+            allocate(reachedIn.length);
+            generation = 1;
+        }
+    }
+
+    public IndexedMinHeap fringe() {return fringe;}
+
+    /** Has the stop been reached in this search */
+    public boolean isReached(int stop) {
+        return reachedIn[stop] == generation;
+    }
+
+    /** Has the stop been settled (removed from the fringe) in this search */
+    public boolean isSettled(int stop) {
+        return settledIn[stop] == generation;
+    }
+
+    public void settle(int stop) {
+        settledIn[stop] = generation;
+    }
+
+    /** The cost so far of a stop (infinite if it has not been reached) */
+    public double cost(int stop) {
+        return isReached(stop) ? cost[stop] : Double.POSITIVE_INFINITY;
+    }
+
+    public int backEdge(int stop) {
+        return backEdge[stop];
+    }
+
+    /** The heuristic estimate recorded when the stop was first reached */
+    public double estimate(int stop) {
+        return estimate[stop];
+    }
+
+    /** Record that the stop has been reached for the first time */
+    public void reach(int stop, double stopCost, int edge, double stopEstimate) {
+        reachedIn[stop] = generation;
+        cost[stop] = stopCost;
+        backEdge[stop] = edge;
+        estimate[stop] = stopEstimate;
+    }
+
+    /** Record a cheaper path to a stop that has already been reached */
+    public void improve(int stop, double stopCost, int edge) {
+        cost[stop] = stopCost;
+        backEdge[stop] = edge;
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/**
+ * Statistics of the work done by the AStar searches, for seeing how much a route
+ *  query costs (in the NetworkViewer, or in a benchmark).
+ * Recording is opt-in: AStar.setStats(stats) starts it and AStar.setStats(null) stops it.
+ *  The searches always count their work in local variables, and only hand the counts
+ *  to the statistics (one call at the end of the search) when there are statistics to
+ *  record them in, so the searches cost the same when recording is off.
+ *
+ * For each query it records
+ *  - the stops (or states) settled, ie taken from the queue,
+ *  - the entries pushed onto the queue,
+ *  - the decrease-keys: AStar's queue is an IndexedMinHeap, so a better path to a stop
+ *    that is already queued lowers its priority in place, and there are never any stale
+ *    entries to pop (where a heap without decrease-key would have one stale pop each),
+ *  - the edges (or arcs) relaxed, ie looked at from the settled stops,
+ *  - the heuristic evaluations, and
+ *  - the wall clock time.
+ * It keeps the counts of the last query and the totals over all the queries, and the
+ *  times of all the queries in a histogram with log-linear buckets (as in HdrHistogram):
+ *  each power of two of nanoseconds is split into SUB_BUCKETS equal buckets, so any time
+ *  is known to within 1/SUB_BUCKETS (about 6%), using a fixed array of under 1000 counts.
+ *
+ * All the methods are synchronized, since the searches may run on several threads
+ *  (eg in the RouteServer).
+ */
+public class SearchStats {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private long queries = 0;
+    private long settled = 0;
+    private long pushes = 0;
+    private long decreaseKeys = 0;
+    private long relaxations = 0;
+    private long heuristicEvaluations = 0;
+    private long nanos = 0;
+    private long maxNanos = 0;
+
+    // the counts of the last query
+    private int lastSettled = 0;
+    private int lastPushes = 0;
+    private int lastDecreaseKeys = 0;
+    private int lastRelaxations = 0;
+    private int lastHeuristicEvaluations = 0;
+    private long lastNanos = 0;
+
+    private final long[] histogram = new long[NUM_BUCKETS];
+
+    /**
+     * Record the counts and the time (in nanoseconds) of one query
+     */
+    public synchronized void record(int settled, int pushes, int decreaseKeys, int relaxations,
+                                    int heuristicEvaluations, long nanos) {
+        queries++;
+        this.settled += settled;
+        this.pushes += pushes;
+        this.decreaseKeys += decreaseKeys;
+        this.relaxations += relaxations;
+        this.heuristicEvaluations += heuristicEvaluations;
+        this.nanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+        lastSettled = settled;
+        lastPushes = pushes;
+        lastDecreaseKeys = decreaseKeys;
+        lastRelaxations = relaxations;
+        lastHeuristicEvaluations = heuristicEvaluations;
+        lastNanos = nanos;
+        histogram[bucket(Math.max(nanos, 0))]++;
+    }
+
+    /** Forget all the queries */
+    public synchronized void reset() {
+        queries = settled = pushes = decreaseKeys = relaxations = heuristicEvaluations = nanos = maxNanos = 0;
+        lastSettled = lastPushes = lastDecreaseKeys = lastRelaxations = lastHeuristicEvaluations = 0;
+        lastNanos = 0;
+        Arrays.fill(histogram, 0);
+    }
+
+    public synchronized long getQueries() {return queries;}
+    public synchronized long getSettled() {return settled;}
+    public synchronized long getPushes() {return pushes;}
+    public synchronized long getDecreaseKeys() {return decreaseKeys;}
+    public synchronized long getRelaxations() {return relaxations;}
+    public synchronized long getHeuristicEvaluations() {return heuristicEvaluations;}
+    public synchronized long getNanos() {return nanos;}
+    public synchronized long getMaxNanos() {return maxNanos;}
+
+    public synchronized int getLastSettled() {return lastSettled;}
+    public synchronized int getLastPushes() {return lastPushes;}
+    public synchronized int getLastDecreaseKeys() {return lastDecreaseKeys;}
+    public synchronized int getLastRelaxations() {return lastRelaxations;}
+    public synchronized int getLastHeuristicEvaluations() {return lastHeuristicEvaluations;}
+    public synchronized long getLastNanos() {return lastNanos;}
+
+    /** The mean time of a query, in nanoseconds */
+    public synchronized double meanNanos() {
+        return (queries == 0) ? 0 : (double) nanos / queries;
+    }
+
+    /**
+     * The time (in nanoseconds) that the given percentage of the queries took at most,
+     * as the highest time in its histogram bucket (so it is never below the true value)
+     */
+    public synchronized long percentileNanos(double percent) {
+        if (queries == 0) { return 0; }
+        long rank = Math.max(1, (long) Math.ceil(queries * percent / 100));
+        long count = 0;
+        for (int b = 0; b < NUM_BUCKETS; b++) {
+            count += histogram[b];
+            if (count >= rank) {
+                return Math.min(highestInBucket(b), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * The bucket of a time: times below SUB_BUCKETS have a bucket each; above that, the
+     * power of two of the time picks a row of SUB_BUCKETS buckets, and the next
+     * SUB_BUCKET_BITS bits pick the bucket in the row
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) { return (int) value; }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** The lowest time in a bucket */
+    private static long lowestInBucket(int bucket) {
+        if (bucket < SUB_BUCKETS) { return bucket; }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /** The highest time in a bucket */
+    private static long highestInBucket(int bucket) {
+        return (bucket + 1 < NUM_BUCKETS) ? lowestInBucket(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * A report of the last query, the totals and the latency percentiles
+     */
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Last search: %d settled, %d pushed, %d decrease-keys, %d relaxed, "
+                                    + "%d heuristic evaluations, %.3f ms%n",
+                                    lastSettled, lastPushes, lastDecreaseKeys, lastRelaxations,
+                                    lastHeuristicEvaluations, lastNanos / 1e6));
+        report.append(String.format("%d searches: %d settled, %d pushed, %d decrease-keys, %d relaxed, "
+                                    + "%d heuristic evaluations, %.1f ms%n",
+                                    queries, settled, pushes, decreaseKeys, relaxations,
+                                    heuristicEvaluations, nanos / 1e6));
+        report.append(String.format("Latency: mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                                    meanNanos() / 1e6, percentileNanos(50) / 1e6, percentileNanos(90) / 1e6,
+                                    percentileNanos(99) / 1e6, maxNanos / 1e6));
+        return report.toString();
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * A uniform latitude/longitude grid over the locations of Stops.
+ * Each Stop is put in the cell that contains its GisPoint, so that a query for
+ *  all the stops within some distance of a point only needs to look at the
+ *  cells that overlap the circle around the point, rather than at every stop.
+ *
+ * Cells are stored in a HashMap keyed by the (row, column) of the cell, so
+ *  only the cells that actually contain stops take up any space.
+ *
+ * The cell size is specified in meters. The height of a cell in degrees of latitude
+ *  is the same everywhere; the width of a cell in degrees of longitude is widened by
+ *  the cosine of the average latitude of the stops so that cells are roughly square.
+ *  Queries work out the range of columns from the latitude of the query itself,
+ *  so they are correct even if the stops cover a wide range of latitudes.
+ */
+public class SpatialGrid {
+
+    /** Meters per degree of latitude, using the same earth radius as GisPoint.distance */
+    public static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180.0;
+
+    // a small safety margin so that rounding can never lose a stop on the edge of a query
+    private static final double MARGIN = 1.01;
+
+    private final double cellSize;       // in meters
+    private final double cellLatDegrees; // height of a cell in degrees
+    private final double cellLonDegrees; // width of a cell in degrees
+
+    private final Map<Long, List<Stop>> cells = new HashMap<Long, List<Stop>>();
+    private int size = 0;
+
+    /**
+     * Construct a grid containing all the given stops, with cells that are
+     * (approximately) cellSize meters along each side.
+     */
+    public SpatialGrid(Collection<Stop> stops, double cellSize) {
+        this.cellSize = cellSize;
+        this.cellLatDegrees = cellSize / METERS_PER_DEGREE;
+        double sumLat = 0;
+        for (Stop stop : stops) {
+            sumLat += stop.getPoint().getLat();
+        }
+        double meanLat = stops.isEmpty() ? 0 : sumLat / stops.size();
+        this.cellLonDegrees = cellLatDegrees / Math.max(Math.cos(Math.toRadians(meanLat)), 0.01);
+        for (Stop stop : stops) {
+            add(stop);
+        }
+    }
+
+    /** Return the size of the sides of the cells, in meters */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /** Return the number of stops in the grid */
+    public int size() {
+        return size;
+    }
+
+    /** Add a stop to the cell containing its location */
+    public void add(Stop stop) {
+        GisPoint point = stop.getPoint();
+        long key = key(row(point.getLat()), col(point.getLon()));
+        cells.computeIfAbsent(key, k -> new ArrayList<Stop>()).add(stop);
+        size++;
+    }
+
+    /** Remove a stop from the grid (if it is present) */
+    public void remove(Stop stop) {
+        GisPoint point = stop.getPoint();
+        long key = key(row(point.getLat()), col(point.getLon()));
+        List<Stop> cell = cells.get(key);
+        if (cell != null && cell.remove(stop)) {
+            size--;
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Return all the stops that are at most radius meters from the given point
+     * (measured with GisPoint.distance).
+     */
+    public List<Stop> getStopsWithin(GisPoint centre, double radius) {
+        List<Stop> ans = new ArrayList<Stop>();
+        if (radius < 0) { return ans; }
+        double dLat = radius * MARGIN / METERS_PER_DEGREE;
+        int minRow = row(centre.getLat() - dLat);
+        int maxRow = row(centre.getLat() + dLat);
+
+        // the columns must be wide enough at whichever edge of the circle is nearest the pole
+        double maxAbsLat = Math.min(Math.abs(centre.getLat()) + dLat, 90.0);
+        double cosLat = Math.cos(Math.toRadians(maxAbsLat));
+        double dLon = (cosLat > 1e-6) ? Math.min(dLat / cosLat, 180.0) : 180.0;
+        int minCol = col(centre.getLon() - dLon);
+        int maxCol = col(centre.getLon() + dLon);
+
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minCol; c <= maxCol; c++) {
+                List<Stop> cell = cells.get(key(r, c));
+                if (cell == null) { continue; }
+                for (Stop stop : cell) {
+                    if (stop.distanceTo(centre) <= radius) {
+                        ans.add(stop);
+                    }
+                }
+            }
+        }
+        return ans;
+    }
+
+    //--------------------------------------------
+    //  Helpers for identifying cells
+    //--------------------------------------------
+
+    private int row(double lat) {
+        return (int)Math.floor(lat / cellLatDegrees);
+    }
+
+    private int col(double lon) {
+        return (int)Math.floor(lon / cellLonDegrees);
+    }
+
+    private static long key(int row, int col) {
+        return (((long)row) << 32) | (col & 0xffffffffL);
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * A line-expanded version of a GraphSnapshot, in which the wait penalty for
+ *  changing lines or transport types is an ordinary edge cost.
+ *
+ * Every edge has a key: its line id, or (for edges with no line, ie walking edges)
+ *  a key for its transport type. AStar adds the wait penalty exactly when the key
+ *  changes from one edge to the next, so the states of a journey are
+ *  (stop, key of the edge we are on), plus one hub state for each stop:
+ *  - a ride arc (s,k) -> (t,k) for each edge from s to t with key k, costing its travel time,
+ *  - an alighting arc (s,k) -> hub(s) costing nothing, and
+ *  - a boarding arc hub(s) -> (s,k) costing AStar.WAIT_PENALTY.
+ * A journey from stop S to stop T starts in any ride state of S at cost 0
+ *  (there is no penalty on the first edge), and ends at hub(T).
+ * Shortest paths over the states are exact under the wait penalty rules,
+ *  which is not true of a search that only records one path per stop.
+ *
+ * States 0 .. numStops-1 are the hubs (hub(s) == s); the ride states of each
+ *  stop follow, grouped by stop and sorted by key.
+ * The arcs out of each state are stored in CSR form (as in GraphSnapshot), with
+ *  the snapshot edge number of each ride arc (NO_EDGE for the other arcs).
+ *  The arcs into each state are also listed (as arc numbers), for backward searches.
+ */
+public class StateGraph {
+
+    public static final int HUB = -1;      // key of a hub state
+    public static final int NO_EDGE = -1;  // edge number of an alighting or boarding arc
+
+    private final GraphSnapshot graph;
+    private final int numStops;
+
+    private final int[] rideStart;  // ride states of stop s are rideStart[s] .. rideStart[s+1]-1
+    private final int[] stateStop;  // the stop of each state
+    private final int[] stateKey;   // the key of each state (HUB for hubs)
+
+    private final int[] arcStart;   // arcs out of state x are arcStart[x] .. arcStart[x+1]-1
+    private final int[] arcTarget;
+    private final int[] arcCost;
+    private final int[] arcEdge;
+    private final int[] arcSource;
+
+    private final int[] inStart;    // arcs into state x are inArcs[inStart[x]] .. inArcs[inStart[x+1]-1]
+    private final int[] inArcs;
+
+    /**
+     * Construct the state graph for a snapshot.
+     */
+    public StateGraph(GraphSnapshot graph) {
+        this.graph = graph;
+        numStops = graph.numStops();
+
+        // find the keys of the edges into and out of each stop
+        rideStart = new int[numStops + 1];
+        int[][] stopKeys = new int[numStops][];
+        int[] keys = new int[16];
+        for (int s = 0; s < numStops; s++) {
+            int count = 0;
+            int size = (graph.endEdge(s) - graph.firstEdge(s)) + (graph.endInEdge(s) - graph.firstInEdge(s));
+            if (keys.length < size) { keys = new int[size]; }
+            for (int e = graph.firstEdge(s); e < graph.endEdge(s); e++) {
+                keys[count++] = edgeKey(graph, e);
+            }
+            for (int i = graph.firstInEdge(s); i < graph.endInEdge(s); i++) {
+                keys[count++] = edgeKey(graph, graph.inEdge(i));
+            }
+            Arrays.sort(keys, 0, count);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || keys[i] != keys[unique - 1]) { keys[unique++] = keys[i]; }
+            }
+            stopKeys[s] = Arrays.copyOf(keys, unique);
+            rideStart[s + 1] = rideStart[s] + unique;
+        }
+        int numStates = numStops + rideStart[numStops];
+        for (int s = 0; s <= numStops; s++) {
+            rideStart[s] += numStops;
+        }
+        stateStop = new int[numStates];
+        stateKey = new int[numStates];
+        for (int s = 0; s < numStops; s++) {
+            stateStop[s] = s;
+            stateKey[s] = HUB;
+            for (int i = 0; i < stopKeys[s].length; i++) {
+                stateStop[rideStart[s] + i] = s;
+                stateKey[rideStart[s] + i] = stopKeys[s][i];
+            }
+        }
+
+        // count the arcs out of each state
+        arcStart = new int[numStates + 1];
+        for (int s = 0; s < numStops; s++) {
+            arcStart[s + 1] = rideStart[s + 1] - rideStart[s];   // boarding arcs
+            for (int x = rideStart[s]; x < rideStart[s + 1]; x++) {
+                arcStart[x + 1] = 1;                              // alighting arc
+            }
+            for (int e = graph.firstEdge(s); e < graph.endEdge(s); e++) {
+                arcStart[rideState(s, edgeKey(graph, e)) + 1]++;  // ride arcs
+            }
+        }
+        for (int x = 0; x < numStates; x++) {
+            arcStart[x + 1] += arcStart[x];
+        }
+        int numArcs = arcStart[numStates];
+        arcTarget = new int[numArcs];
+        arcCost = new int[numArcs];
+        arcEdge = new int[numArcs];
+        arcSource = new int[numArcs];
+
+        // fill in the arcs
+        int[] next = Arrays.copyOf(arcStart, numStates);
+        for (int s = 0; s < numStops; s++) {
+            for (int x = rideStart[s]; x < rideStart[s + 1]; x++) {
+                setArc(next[s]++, s, x, AStar.WAIT_PENALTY, NO_EDGE);
+                setArc(next[x]++, x, s, 0, NO_EDGE);
+            }
+            for (int e = graph.firstEdge(s); e < graph.endEdge(s); e++) {
+                int key = edgeKey(graph, e);
+                int from = rideState(s, key);
+                setArc(next[from]++, from, rideState(graph.target(e), key), graph.travelTime(e), e);
+            }
+        }
+
+        // group the arc numbers by the state they go to
+        inStart = new int[numStates + 1];
+        for (int a = 0; a < numArcs; a++) {
+            inStart[arcTarget[a] + 1]++;
+        }
+        for (int x = 0; x < numStates; x++) {
+            inStart[x + 1] += inStart[x];
+        }
+        inArcs = new int[numArcs];
+        next = Arrays.copyOf(inStart, numStates);
+        for (int a = 0; a < numArcs; a++) {
+            inArcs[next[arcTarget[a]]++] = a;
+        }
+    }
+
+    private void setArc(int arc, int source, int target, int cost, int edge) {
+        arcSource[arc] = source;
+        arcTarget[arc] = target;
+        arcCost[arc] = cost;
+        arcEdge[arc] = edge;
+    }
+
+    /**
+     * The key of an edge in a snapshot: its line id, or if it has no line,
+     * a key (after all the line ids) for its transport type
+     */
+    public static int edgeKey(GraphSnapshot graph, int edge) {
+        int line = graph.lineId(edge);
+        return (line != GraphSnapshot.NO_LINE) ? line : graph.numLines() + graph.typeCode(edge);
+    }
+
+    public GraphSnapshot getSnapshot() {return graph;}
+    public int numStops() {return numStops;}
+    public int numStates() {return stateStop.length;}
+    public int numArcs() {return arcTarget.length;}
+
+    /** The hub state of a stop */
+    public int hub(int stop) {return stop;}
+    public boolean isHub(int state) {return state < numStops;}
+    public int stopOf(int state) {return stateStop[state];}
+    public int keyOf(int state) {return stateKey[state];}
+
+    /** The first ride state of a stop */
+    public int firstRideState(int stop) {return rideStart[stop];}
+
+    /** One more than the last ride state of a stop */
+    public int endRideState(int stop) {return rideStart[stop + 1];}
+
+    /** The ride state of a stop with the given key, or -1 if no edge at the stop has that key */
+    public int rideState(int stop, int key) {
+        int pos = Arrays.binarySearch(stateKey, rideStart[stop], rideStart[stop + 1], key);
+        return (pos >= 0) ? pos : -1;
+    }
+
+    public int firstArc(int state) {return arcStart[state];}
+    public int endArc(int state) {return arcStart[state + 1];}
+    public int arcSource(int arc) {return arcSource[arc];}
+    public int arcTarget(int arc) {return arcTarget[arc];}
+    public int arcCost(int arc) {return arcCost[arc];}
+
+    /** The snapshot edge number of a ride arc, or NO_EDGE for an alighting or boarding arc */
+    public int arcEdge(int arc) {return arcEdge[arc];}
+
+    /** The position of the first arc into the state in the list of arcs into states */
+    public int firstInArc(int state) {return inStart[state];}
+
+    /** One more than the position of the last arc into the state */
+    public int endInArc(int state) {return inStart[state + 1];}
+
+    /** The arc number at a position in the list of arcs into states */
+    public int inArc(int position) {return inArcs[position];}
+}
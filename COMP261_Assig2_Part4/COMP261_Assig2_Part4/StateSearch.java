@@ -0,0 +1,183 @@
+/**
+ * One A* (or Dijkstra) search over the StateGraph of a snapshot: the loop that the exact
+ *  searches share (AStar.findShortestPathExact, KShortestPaths, Isochrone and TravelTimeMatrix).
+ *
+ * The search is given
+ *  - the direction: forwards along the arcs out of each state, or backwards along the
+ *    arcs into each state (the back pointers then point towards the end of the path),
+ *  - an ArcFilter, for searches that must leave some arcs out (eg the spur searches of
+ *    KShortestPaths), and
+ *  - an Estimate, a lower bound on the cost from a state to the end of the search
+ *    (NO_ESTIMATE for Dijkstra); a state whose estimate is infinite is never reached,
+ *  and then seeded with the states it starts from.
+ * The caller runs the loop, since the searches stop for different reasons:
+ *     while (!search.isEmpty() && ...) {
+ *         int state = search.settleNext();
+ *         ...
+ *         search.relax(state);
+ *     }
+ * The costs, back pointers and estimates are kept in a SearchSpace (see space()), and
+ *  the search counts its work for SearchStats.
+ */
+public class StateSearch {
+
+    /** Which arcs a search may use */
+    public interface ArcFilter {
+        boolean allows(int arc);
+    }
+
+    /** A lower bound on the cost from a state to the end of a search (infinity if there is no way) */
+    public interface Estimate {
+        double estimate(int state);
+    }
+
+    public static final ArcFilter ALL_ARCS = (int arc) -> true;
+    public static final Estimate NO_ESTIMATE = (int state) -> 0;
+
+    private final StateGraph states;
+    private final SearchSpace space;
+    private final IndexedMinHeap fringe;
+    private final boolean backward;
+    private final ArcFilter filter;
+    private final Estimate estimate;
+    private double maxCost = Double.POSITIVE_INFINITY;
+
+    // the work done, for SearchStats
+    private int settled = 0;
+    private int pushes = 0;
+    private int decreaseKeys = 0;
+    private int relaxations = 0;
+    private int estimates = 0;
+
+    /**
+     * Start a search over the states, in the given search space (which is cleared)
+     */
+    public StateSearch(StateGraph states, SearchSpace space, boolean backward, ArcFilter filter, Estimate estimate) {
+        this.states = states;
+        this.space = space;
+        this.backward = backward;
+        this.filter = filter;
+        this.estimate = estimate;
+        space.startSearch(states.numStates());
+        fringe = space.fringe();
+    }
+
+    /**
+     * Don't reach any state whose cost plus estimate is over maxCost
+     * (eg, the budget of an isochrone)
+     */
+    public void setMaxCost(double maxCost) {
+        this.maxCost = maxCost;
+    }
+
+    /** Start the search from a state, with the given cost */
+    public void seed(int state, double cost) {
+        double stateEstimate = estimate.estimate(state);
+        estimates++;
+        space.reach(state, cost, -1, stateEstimate);
+        fringe.offer(state, cost + stateEstimate);
+        pushes++;
+    }
+
+    /** Treat a state as settled, so the search never reaches it */
+    public void exclude(int state) {
+        space.settle(state);
+    }
+
+    public boolean isEmpty() {return fringe.isEmpty();}
+
+    /** The smallest cost plus estimate on the fringe */
+    public double peekPriority() {return fringe.peekPriority();}
+
+    /** Take the state with the smallest cost plus estimate off the fringe, and settle it */
+    public int settleNext() {
+        int state = fringe.poll();
+        space.settle(state);
+        settled++;
+        return state;
+    }
+
+    /**
+     * Follow the arcs out of (or, searching backwards, into) a settled state
+     */
+    public void relax(int state) {
+        double costSoFar = space.cost(state);
+        if (backward) {
+            relaxations += states.endInArc(state) - states.firstInArc(state);
+            for (int i = states.firstInArc(state); i < states.endInArc(state); i++) {
+                int arc = states.inArc(i);
+                reach(states.arcSource(arc), costSoFar + states.arcCost(arc), arc);
+            }
+        }
+        else {
+            relaxations += states.endArc(state) - states.firstArc(state);
+            for (int arc = states.firstArc(state); arc < states.endArc(state); arc++) {
+                reach(states.arcTarget(arc), costSoFar + states.arcCost(arc), arc);
+            }
+        }
+    }
+
+    /** Record a path of the given cost to a state, if it is the first or a cheaper one */
+    private void reach(int state, double cost, int arc) {
+        if (space.isSettled(state) || !filter.allows(arc)) {
+            return;
+        }
+        if (!space.isReached(state)) {
+            double stateEstimate = estimate.estimate(state);
+            estimates++;
+            if (stateEstimate == Double.POSITIVE_INFINITY || cost + stateEstimate > maxCost) {
+                return; // the end of the search can't be reached from here (within maxCost)
+            }
+            space.reach(state, cost, arc, stateEstimate);
+            fringe.offer(state, cost + stateEstimate);
+            pushes++;
+        }
+        else if (cost < space.cost(state)) {
+            space.improve(state, cost, arc);
+            fringe.offer(state, cost + space.estimate(state));
+            decreaseKeys++;
+        }
+    }
+
+    /** The search space holding the costs, back pointers and estimates */
+    public SearchSpace space() {return space;}
+
+    /** The cost so far of a state (infinite if it has not been reached) */
+    public double cost(int state) {return space.cost(state);}
+
+    public boolean isSettled(int state) {return space.isSettled(state);}
+
+    /**
+     * The snapshot edge numbers along the back pointers from a reached state: the path from
+     * the seed to the state, or (searching backwards) from the state to the seed.
+     * The boarding and alighting arcs, which have no edge, are left out.
+     */
+    public int[] pathEdges(int state) {
+        int count = 0;
+        for (int x = state; space.backEdge(x) >= 0; x = next(x)) {
+            if (states.arcEdge(space.backEdge(x)) != StateGraph.NO_EDGE) { count++; }
+        }
+        int[] edges = new int[count];
+        int pos = backward ? 0 : count - 1;
+        for (int x = state; space.backEdge(x) >= 0; x = next(x)) {
+            int edge = states.arcEdge(space.backEdge(x));
+            if (edge != StateGraph.NO_EDGE) {
+                edges[pos] = edge;
+                pos += backward ? 1 : -1;
+            }
+        }
+        return edges;
+    }
+
+    /** The state the back pointer of a state leads to */
+    private int next(int state) {
+        int arc = space.backEdge(state);
+        return backward ? states.arcTarget(arc) : states.arcSource(arc);
+    }
+
+    public int numSettled() {return settled;}
+    public int numPushes() {return pushes;}
+    public int numDecreaseKeys() {return decreaseKeys;}
+    public int numRelaxations() {return relaxations;}
+    public int numEstimates() {return estimates;}
+}
@@ -2,6 +2,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
 
 /**
  * Structure for holding stop information
@@ -14,8 +16,15 @@ public class Stop implements Comparable<Stop> {
     private String name;
     private String id;
 
-    // data structure for holding the (directed) edges out of the stop
-    private Collection<Edge> edgesOut = new HashSet<Edge>();
+    // the graph that this stop is part of, and its index in that graph
+    // (set by the Graph; index is -1 if the stop is not in a graph)
+    private Graph graph = null;
+    private int index = -1;
+
+    // data structures for holding the (directed) edges out of the stop,
+    // in two separate blocks: the edges along lines, and the walking edges
+    private List<Edge> transitEdgesOut = new ArrayList<Edge>();
+    private List<Edge> walkingEdgesOut = new ArrayList<Edge>();
 
     // data structure for holding a link to the lines that stop is part of   
     private Collection<Line> lines = new HashSet<Line>();
@@ -56,6 +65,21 @@ public class Stop implements Comparable<Stop> {
         return id;
     }
 
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /** The dense index (0 .. number of stops - 1) of this stop in its graph */
+    public int getIndex() {
+        return index;
+    }
+
+    /** Record the graph this stop has been put in, and its index in the graph */
+    public void setGraphIndex(Graph graph, int index) {
+        this.graph = graph;
+        this.index = index;
+    }
+
     /**
      * Returns distance in meters between this stop and a GisPoint
      */
@@ -129,25 +153,58 @@ public class Stop implements Comparable<Stop> {
     //--------------------------------------------
     //  Setting and getting the neighbours of the stop
     //
-    //  edges is a collection of the (directed) edges out of the stop, 
+    //  the (directed) edges out of the stop are kept in two blocks:
+    //  transitEdgesOut has the edges along lines, walkingEdgesOut has the walking edges.
+    //  The Graph adds walking edges in order of distance and removes them in the
+    //  reverse order, so removing a single walking edge is normally at the end of the block.
     //--------------------------------------------
 
-    /** Get the collection of edges*/
+    /** Get the collection of all the edges (transit edges first, then walking edges) */
     public Collection<Edge> getEdgesOut() {
-        return Collections.unmodifiableCollection(edgesOut);
+        return new JoinedCollection<Edge>(transitEdgesOut, walkingEdgesOut);
+    }
+
+    /** Get the edges along lines (bus, train, etc) out of this stop */
+    public List<Edge> getTransitEdgesOut() {
+        return Collections.unmodifiableList(transitEdgesOut);
+    }
+
+    /** Get the walking edges out of this stop */
+    public List<Edge> getWalkingEdgesOut() {
+        return Collections.unmodifiableList(walkingEdgesOut);
     }
          
     /** add a new edge out of this stop  */
     public void addEdge(Edge edge) {
-        this.edgesOut.add(edge);
+        if (Transport.WALKING.equals(edge.transpType())) {
+            this.walkingEdgesOut.add(edge);
+        }
+        else {
+            this.transitEdgesOut.add(edge);
+        }
+    }
+
+    /** remove an edge out of this stop (searching from the end of its block) */
+    public void removeEdge(Edge edge) {
+        List<Edge> block = Transport.WALKING.equals(edge.transpType()) ? walkingEdgesOut : transitEdgesOut;
+        int i = block.lastIndexOf(edge);
+        if (i >= 0) {
+            block.remove(i);
+        }
     }
 
     /**
      * Delete edges of the specified type.
      * [needed for removing Walking edges]
+     * Deleting the walking edges just replaces the block of walking edges.
      */
     public void deleteEdgesOfType(String type) {
-        // remove edges that are of the specified type
-        edgesOut.removeIf((Edge e)->type.equals(e.transpType()));
+        if (Transport.WALKING.equals(type)) {
+            walkingEdgesOut = new ArrayList<Edge>();
+        }
+        else {
+            // remove edges that are of the specified type
+            transitEdgesOut.removeIf((Edge e)->type.equals(e.transpType()));
+        }
     }
 }
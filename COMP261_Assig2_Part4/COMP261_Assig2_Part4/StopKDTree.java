@@ -0,0 +1,254 @@
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A K-D tree over the locations of Stops for nearest neighbour queries:
+ * - the nearest stop to a point,
+ * - the k nearest stops to a point,
+ * - all the stops within a given distance of a point.
+ *
+ * Each location is converted to a point on the unit sphere (x, y, z).
+ * The straight line (chord) distance between two such points only depends on
+ * the great circle distance between them, and gets bigger as it does,
+ * so the nearest stop by chord distance is also the nearest stop by
+ * GisPoint.distance, and the tree can use ordinary 3D Euclidean pruning.
+ *
+ * The tree is stored implicitly in arrays: the points in the range [lo, hi)
+ *  are split at the median mid = (lo+hi)/2, with the smaller half in [lo, mid)
+ *  and the larger half in (mid, hi). The tree is built once and never changes.
+ */
+public class StopKDTree {
+
+    private static final double EARTH_RADIUS = 6371000; // same radius as GisPoint.distance
+
+    private final Stop[] stops;
+    private final double[][] coords;  // coords[axis][i] for the ith point
+    private final byte[] splitAxis;   // axis used to split at each median position
+
+    /**
+     * Construct a K-D tree containing all the given stops.
+     */
+    public StopKDTree(Collection<Stop> stps) {
+        int n = stps.size();
+        stops = stps.toArray(new Stop[n]);
+        coords = new double[3][n];
+        splitAxis = new byte[n];
+        for (int i = 0; i < n; i++) {
+            double[] xyz = toXYZ(stops[i].getPoint());
+            coords[0][i] = xyz[0];
+            coords[1][i] = xyz[1];
+            coords[2][i] = xyz[2];
+        }
+        build(0, n);
+    }
+
+    /** Return the number of stops in the tree */
+    public int size() {
+        return stops.length;
+    }
+
+    //--------------------------------------------
+    //  Queries
+    //--------------------------------------------
+
+    /**
+     * Return the stop closest to the given point, or null if the tree is empty.
+     */
+    public Stop nearest(GisPoint point) {
+        List<Stop> ans = nearest(point, 1);
+        return ans.isEmpty() ? null : ans.get(0);
+    }
+
+    /**
+     * Return the (at most) k stops closest to the given point, nearest first.
+     */
+    public List<Stop> nearest(GisPoint point, int k) {
+        List<Stop> ans = new ArrayList<Stop>();
+        if (k <= 0 || stops.length == 0) { return ans; }
+        double[] xyz = toXYZ(point);
+        Neighbours best = new Neighbours(Math.min(k, stops.length));
+        searchNearest(0, stops.length, xyz, best);
+        for (int i = 0; i < best.count; i++) {
+            ans.add(stops[best.index[i]]);
+        }
+        return ans;
+    }
+
+    /**
+     * Return all the stops that are at most radius meters from the given point.
+     * The stops are not in any particular order.
+     * The tree is searched with a slightly larger radius, and the candidates are
+     *  then checked with GisPoint.distance, so that the answer agrees exactly
+     *  with the distances used everywhere else.
+     */
+    public List<Stop> within(GisPoint point, double radius) {
+        List<Stop> ans = new ArrayList<Stop>();
+        if (radius < 0 || stops.length == 0) { return ans; }
+        double chord = chordLength(radius * 1.0001 + 0.01);
+        searchWithin(0, stops.length, toXYZ(point), chord * chord, ans);
+        ans.removeIf((Stop s) -> s.distanceTo(point) > radius);
+        return ans;
+    }
+
+    //--------------------------------------------
+    //  Searching the tree
+    //--------------------------------------------
+
+    private void searchNearest(int lo, int hi, double[] xyz, Neighbours best) {
+        if (lo >= hi) { return; }
+        int mid = (lo + hi) >>> 1;
+        best.offer(mid, squaredDistance(mid, xyz));
+        if (hi - lo == 1) { return; }
+
+        int axis = splitAxis[mid];
+        double diff = xyz[axis] - coords[axis][mid];
+        // search the side containing the point first, then the other side only if it could be closer
+        if (diff < 0) {
+            searchNearest(lo, mid, xyz, best);
+            if (diff * diff < best.worst()) { searchNearest(mid + 1, hi, xyz, best); }
+        }
+        else {
+            searchNearest(mid + 1, hi, xyz, best);
+            if (diff * diff < best.worst()) { searchNearest(lo, mid, xyz, best); }
+        }
+    }
+
+    private void searchWithin(int lo, int hi, double[] xyz, double maxSq, List<Stop> ans) {
+        if (lo >= hi) { return; }
+        int mid = (lo + hi) >>> 1;
+        if (squaredDistance(mid, xyz) <= maxSq) {
+            ans.add(stops[mid]);
+        }
+        int axis = splitAxis[mid];
+        double diff = xyz[axis] - coords[axis][mid];
+        if (diff <= 0 || diff * diff <= maxSq) { searchWithin(lo, mid, xyz, maxSq, ans); }
+        if (diff >= 0 || diff * diff <= maxSq) { searchWithin(mid + 1, hi, xyz, maxSq, ans); }
+    }
+
+    private double squaredDistance(int i, double[] xyz) {
+        double dx = coords[0][i] - xyz[0];
+        double dy = coords[1][i] - xyz[1];
+        double dz = coords[2][i] - xyz[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * The best k candidates found so far, kept in order of distance (nearest first).
+     * k is small, so insertion into a sorted array is fast enough.
+     */
+    private static class Neighbours {
+        final int[] index;
+        final double[] distSq;
+        int count = 0;
+
+        Neighbours(int k) {
+            index = new int[k];
+            distSq = new double[k];
+        }
+
+        /** The distance that a new candidate has to beat */
+        double worst() {
+            return (count < index.length) ? Double.POSITIVE_INFINITY : distSq[count - 1];
+        }
+
+        void offer(int i, double d) {
+            if (d >= worst()) { return; }
+            int pos = (count < index.length) ? count++ : count - 1;
+            while (pos > 0 && distSq[pos - 1] > d) {
+                index[pos] = index[pos - 1];
+                distSq[pos] = distSq[pos - 1];
+                pos--;
+            }
+            index[pos] = i;
+            distSq[pos] = d;
+        }
+    }
+
+    //--------------------------------------------
+    //  Building the tree
+    //--------------------------------------------
+
+    /**
+     * Arrange the points in [lo, hi) into a K-D tree, splitting each range
+     * on the axis along which its points are most spread out.
+     */
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) { return; }
+        int axis = widestAxis(lo, hi);
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        splitAxis[mid] = (byte)axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(int lo, int hi) {
+        int best = 0;
+        double bestSpread = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                min = Math.min(min, coords[axis][i]);
+                max = Math.max(max, coords[axis][i]);
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                best = axis;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Quickselect: rearrange the points in [left, right] so that the point at
+     * position k has the kth smallest value on the axis, with smaller (or equal)
+     * values before it and larger (or equal) values after it.
+     */
+    private void select(int left, int right, int k, int axis) {
+        double[] values = coords[axis];
+        while (left < right) {
+            double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) { i++; }
+                while (values[j] > pivot) { j--; }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) { right = j; }
+            else if (k >= i) { left = i; }
+            else { return; }
+        }
+    }
+
+    private void swap(int i, int j) {
+        Stop s = stops[i]; stops[i] = stops[j]; stops[j] = s;
+        for (double[] values : coords) {
+            double v = values[i]; values[i] = values[j]; values[j] = v;
+        }
+    }
+
+    //--------------------------------------------
+    //  Converting locations and distances
+    //--------------------------------------------
+
+    /** Convert a GisPoint to a point on the unit sphere */
+    private static double[] toXYZ(GisPoint point) {
+        double lat = Math.toRadians(point.getLat());
+        double lon = Math.toRadians(point.getLon());
+        double cosLat = Math.cos(lat);
+        return new double[]{cosLat * Math.cos(lon), cosLat * Math.sin(lon), Math.sin(lat)};
+    }
+
+    /** The chord length on the unit sphere for a great circle distance in meters */
+    private static double chordLength(double meters) {
+        double angle = Math.min(meters / EARTH_RADIUS, Math.PI);
+        return 2 * Math.sin(angle / 2);
+    }
+}
@@ -0,0 +1,181 @@
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * An index of the Stops by name, for looking up stops from the start of their name
+ *  (eg, as the user types in the start and goal fields).
+ *
+ * The stops are kept in an array sorted by their normalised (lower case) names,
+ *  so the stops whose names start with a prefix form one contiguous range of the array,
+ *  which is found by two binary searches: O(log n + k) to return k matches.
+ * The query prefix is compared one character at a time with Character.toLowerCase,
+ *  so a query does not allocate any new strings.
+ *
+ * For autocomplete, the index can also return the top k matches, ranked by the
+ *  number of lines through each stop (busier stops first), then by name.
+ *  A sparse table holds the best ranked stop of every range of 2^j stops, so the best
+ *  stop of any range is found in O(1); the top k are taken from a queue of ranges, each
+ *  split around its best stop when that stop is taken: O(log n + k log k) for k matches,
+ *  however many stops match the prefix (one letter prefixes match thousands).
+ */
+public class StopNameIndex {
+
+    private final Stop[] stops;      // sorted by normalised name, then by the natural order of Stops
+    private final String[] names;    // normalised name of each stop in the stops array
+    private final int[] lineCounts;  // number of lines through each stop in the stops array
+    private final int[][] best;      // best[j][i]: best ranked stop in stops[i .. i+2^j-1]
+
+    /**
+     * Construct an index of the given stops
+     */
+    public StopNameIndex(Collection<Stop> stps) {
+        stops = stps.toArray(new Stop[stps.size()]);
+        Arrays.sort(stops, Comparator.comparing((Stop s) -> normalise(s.getName())).thenComparing(s -> s));
+        names = new String[stops.length];
+        for (int i = 0; i < stops.length; i++) {
+            names[i] = normalise(stops[i].getName());
+        }
+        lineCounts = new int[stops.length];
+        for (int i = 0; i < stops.length; i++) {
+            lineCounts[i] = stops[i].getLines().size();
+        }
+        int levels = 1;
+        while ((1 << levels) <= stops.length) { levels++; }
+        best = new int[levels][];
+        best[0] = new int[stops.length];
+        Arrays.setAll(best[0], i -> i);
+        for (int j = 1; j < levels; j++) {
+            int half = 1 << (j - 1);
+            best[j] = new int[stops.length - (1 << j) + 1];
+            for (int i = 0; i < best[j].length; i++) {
+                best[j][i] = better(best[j - 1][i], best[j - 1][i + half]);
+            }
+        }
+    }
+
+    /**
+     * The normalised form of a name that the index is sorted by.
+     * Each character is lower-cased separately, exactly as the query prefixes are.
+     */
+    public static String normalise(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Return the first stop (in alphabetic order) whose name starts with the prefix,
+     * ignoring case, or null if there is none.
+     */
+    public Stop firstMatch(String prefix) {
+        int lo = lowerBound(prefix);
+        return (lo < stops.length && startsWith(names[lo], prefix)) ? stops[lo] : null;
+    }
+
+    /**
+     * Return all the stops whose names start with the prefix, ignoring case,
+     * in alphabetic order.
+     */
+    public List<Stop> allMatches(String prefix) {
+        int lo = lowerBound(prefix);
+        int hi = upperBound(prefix, lo);
+        return new ArrayList<Stop>(Arrays.asList(stops).subList(lo, hi));
+    }
+
+    /**
+     * Return the number of stops whose names start with the prefix, ignoring case.
+     */
+    public int countMatches(String prefix) {
+        int lo = lowerBound(prefix);
+        return upperBound(prefix, lo) - lo;
+    }
+
+    /**
+     * Return (at most) k of the stops whose names start with the prefix, ignoring case,
+     * ranked by the number of lines through the stop (most first), then alphabetically.
+     */
+    public List<Stop> topMatches(String prefix, int k) {
+        List<Stop> ans = new ArrayList<Stop>();
+        int lo = lowerBound(prefix);
+        int hi = upperBound(prefix, lo);
+        if (k <= 0 || lo == hi) { return ans; }
+        // ranges of matches {lo, hi, best stop in the range}, best ranked first
+        PriorityQueue<int[]> ranges = new PriorityQueue<int[]>((int[] r1, int[] r2) ->
+                                                               (better(r1[2], r2[2]) == r1[2]) ? -1 : 1);
+        ranges.offer(new int[]{lo, hi, bestIn(lo, hi)});
+        while (ans.size() < k && !ranges.isEmpty()) {
+            int[] range = ranges.poll();
+            int top = range[2];
+            ans.add(stops[top]);
+            if (range[0] < top) { ranges.offer(new int[]{range[0], top, bestIn(range[0], top)}); }
+            if (top + 1 < range[1]) { ranges.offer(new int[]{top + 1, range[1], bestIn(top + 1, range[1])}); }
+        }
+        return ans;
+    }
+
+    /** The best ranked stop in stops[lo .. hi-1] (which must not be empty) */
+    private int bestIn(int lo, int hi) {
+        int j = 31 - Integer.numberOfLeadingZeros(hi - lo);
+        return better(best[j][lo], best[j][hi - (1 << j)]);
+    }
+
+    /** The better ranked of two stops in the stops array (more lines; ties keep the alphabetic order) */
+    private int better(int i, int j) {
+        if (lineCounts[i] != lineCounts[j]) { return (lineCounts[i] > lineCounts[j]) ? i : j; }
+        return Math.min(i, j);
+    }
+
+    //--------------------------------------------
+    //  Binary searching for the range of matches
+    //--------------------------------------------
+
+    /** Index of the first name that is not less than the prefix */
+    private int lowerBound(String prefix) {
+        int lo = 0;
+        int hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(names[mid], prefix) < 0) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return lo;
+    }
+
+    /** Index of the first name (at or after from) that does not start with the prefix */
+    private int upperBound(String prefix, int from) {
+        int lo = from;
+        int hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(names[mid], prefix) <= 0) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return lo;
+    }
+
+    /**
+     * Compare the start of a normalised name with a prefix (which is lower-cased as it is read):
+     * negative if the name comes before every name starting with the prefix,
+     * zero if the name starts with the prefix,
+     * positive if the name comes after every name starting with the prefix.
+     */
+    private static int comparePrefix(String name, String prefix) {
+        int len = Math.min(name.length(), prefix.length());
+        for (int i = 0; i < len; i++) {
+            char c1 = name.charAt(i);
+            char c2 = Character.toLowerCase(prefix.charAt(i));
+            if (c1 != c2) { return c1 - c2; }
+        }
+        return (name.length() < prefix.length()) ? -1 : 0;
+    }
+
+    private static boolean startsWith(String name, String prefix) {
+        return comparePrefix(name, prefix) == 0;
+    }
+}
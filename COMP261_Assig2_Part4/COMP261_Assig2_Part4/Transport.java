@@ -25,6 +25,16 @@ public class Transport {
     public static final String CABLECAR = "cablecar";
     public static final String TRANSFER = "transfer";
 
+    // Small integer codes for the transport types, for compact graph representations
+    // (TYPES[code] is the type with that code)
+    public static final byte WALKING_CODE = 0;
+    public static final byte BUS_CODE = 1;
+    public static final byte TRAIN_CODE = 2;
+    public static final byte CABLECAR_CODE = 3;
+    public static final byte FERRY_CODE = 4;
+    public static final byte TRANSFER_CODE = 5;
+    public static final String[] TYPES = {WALKING, BUS, TRAIN, CABLECAR, FERRY, TRANSFER};
+
     private static final Set<String> TRAINS = Set.of("JVL_0", "JVL_1", "KPL_0", "KPL_1", "MEL_0", "MEL_1", "HVL_0", "HVL_1", "WRL_0", "WRL_1");
     private static final Set<String> CABLECARS = Set.of("CCL_0","CCL_1");
     private static final Set<String> FERRIES= Set.of("WHF_0", "WHF_1");
@@ -39,6 +49,20 @@ public class Transport {
         else { return BUS;}
     }
 
+    /**
+     * Return the code for a transport type (one of the constants above)
+     */
+    public static byte typeCode(String transpType) {
+        return switch (transpType) {
+            case WALKING -> WALKING_CODE;
+            case TRAIN -> TRAIN_CODE;
+            case CABLECAR -> CABLECAR_CODE;
+            case FERRY -> FERRY_CODE;
+            case TRANSFER -> TRANSFER_CODE;
+            default -> BUS_CODE;
+        };
+    }
+
     /**
      * Returns if the given lineId is a train line.
      */
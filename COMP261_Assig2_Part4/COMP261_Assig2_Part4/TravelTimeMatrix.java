@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * An origin-destination matrix of travel times between sets of stops,
+ *  eg all the stops in a fare zone, or all the train stations.
+ *
+ * The times are the costs that the searches minimise (travel time plus the wait
+ *  penalties), computed exactly with one Dijkstra search per source over the
+ *  StateGraph of a snapshot, which finds the times to all the destinations at once.
+ *  Each search stops as soon as every destination has been reached.
+ * The sources are searched in parallel; the snapshot is read only, and each thread
+ *  uses its own SearchSpace (SearchSpace.forThread), so the searches share nothing else.
+ *
+ * The times are stored in one int array, row by row (one row per source),
+ *  with UNREACHABLE for a destination that can't be reached from a source.
+ */
+public class TravelTimeMatrix {
+
+    public static final int UNREACHABLE = -1;
+
+    private final Stop[] sources;
+    private final Stop[] destinations;
+    private final int[] times;   // times[row * destinations.length + column]
+    private final long computeNanos;
+
+    /**
+     * Compute the travel times from each of the source stops to each of the
+     * destination stops (given by their indexes in the snapshot)
+     */
+    public TravelTimeMatrix(GraphSnapshot graph, int[] sourceStops, int[] destinationStops) {
+        long start = System.nanoTime();
+        StateGraph states = graph.getStateGraph();
+        sources = new Stop[sourceStops.length];
+        for (int i = 0; i < sourceStops.length; i++) {
+            sources[i] = graph.getStop(sourceStops[i]);
+        }
+        destinations = new Stop[destinationStops.length];
+        int[] column = new int[states.numStates()]; // column of each destination hub (-1 for other states)
+        Arrays.fill(column, -1);
+        int numColumns = 0;
+        for (int i = 0; i < destinationStops.length; i++) {
+            destinations[i] = graph.getStop(destinationStops[i]);
+            if (column[states.hub(destinationStops[i])] < 0) { numColumns++; }
+            column[states.hub(destinationStops[i])] = i;
+        }
+        times = new int[sourceStops.length * destinationStops.length];
+        Arrays.fill(times, UNREACHABLE);
+        int distinctColumns = numColumns;
+        IntStream.range(0, sourceStops.length).parallel()
+            .forEach(row -> searchFrom(states, sourceStops[row], column, distinctColumns, row));
+        computeNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Dijkstra's algorithm from one source stop over the states, filling in its row
+     */
+    private void searchFrom(StateGraph states, int source, int[] column, int numColumns, int row) {
+        StateSearch search = new StateSearch(states, SearchSpace.forThread(states.numStates()), false,
+                                             StateSearch.ALL_ARCS, StateSearch.NO_ESTIMATE);
+        // the journey can start on any of the edges at the source, with no penalty
+        for (int x = states.firstRideState(source); x < states.endRideState(source); x++) {
+            search.seed(x, 0);
+        }
+        if (column[states.hub(source)] >= 0) {
+            search.seed(states.hub(source), 0);
+        }
+        int rowStart = row * destinations.length;
+        int found = 0;
+        while (!search.isEmpty() && found < numColumns) {
+            int current = search.settleNext();
+            if (column[current] >= 0) {
+                times[rowStart + column[current]] = (int) search.cost(current);
+                found++;
+            }
+            search.relax(current);
+        }
+        // a stop listed more than once as a destination only had its last column filled in
+        for (int i = 0; i < destinations.length; i++) {
+            int hubColumn = column[states.hub(destinations[i].getIndex())];
+            if (hubColumn != i) {
+                times[rowStart + i] = times[rowStart + hubColumn];
+            }
+        }
+    }
+
+    public int numSources() {return sources.length;}
+    public int numDestinations() {return destinations.length;}
+    public Stop getSource(int row) {return sources[row];}
+    public Stop getDestination(int column) {return destinations[column];}
+
+    /** The travel time in seconds from a source to a destination, or UNREACHABLE */
+    public int getTime(int row, int column) {
+        return times[row * destinations.length + column];
+    }
+
+    /** The whole matrix, row by row */
+    public int[] getTimes() {
+        return times;
+    }
+
+    /** How many sources were searched per second while computing the matrix */
+    public double sourcesPerSecond() {
+        return sources.length / (computeNanos / 1e9);
+    }
+
+    /**
+     * Write the matrix as a CSV file, with the destination stop ids across the top
+     * and the source stop ids down the side (and empty entries for UNREACHABLE)
+     */
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            StringBuilder line = new StringBuilder("from\\to");
+            for (Stop stop : destinations) {
+                line.append(',').append(stop.getId());
+            }
+            out.println(line);
+            for (int row = 0; row < sources.length; row++) {
+                line.setLength(0);
+                line.append(sources[row].getId());
+                for (int column = 0; column < destinations.length; column++) {
+                    line.append(',');
+                    int time = getTime(row, column);
+                    if (time != UNREACHABLE) { line.append(time); }
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    //--------------------------------------------
+    //  Choosing sets of stops
+    //--------------------------------------------
+
+    /** The indexes of the stops in a snapshot that are in the given fare zone */
+    public static int[] stopsInZone(GraphSnapshot graph, Zoning zoning, int zone) {
+        return IntStream.range(0, graph.numStops())
+            .filter(s -> zoning.findZone(graph.getStop(s).getPoint()) == zone)
+            .toArray();
+    }
+
+    /** The indexes of the stops in a snapshot that have a train edge into or out of them */
+    public static int[] trainStations(GraphSnapshot graph) {
+        return IntStream.range(0, graph.numStops())
+            .filter(s -> hasTrainEdge(graph, s))
+            .toArray();
+    }
+
+    private static boolean hasTrainEdge(GraphSnapshot graph, int stop) {
+        for (int e = graph.firstEdge(stop); e < graph.endEdge(stop); e++) {
+            if (graph.typeCode(e) == Transport.TRAIN_CODE) { return true; }
+        }
+        for (int i = graph.firstInEdge(stop); i < graph.endInEdge(stop); i++) {
+            if (graph.typeCode(graph.inEdge(i)) == Transport.TRAIN_CODE) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * Compute a matrix for a data directory and write it to a CSV file.
+     * Usage: java TravelTimeMatrix DATA_DIRECTORY (trains | zone NUMBER) OUTPUT_FILE [WALKING_DISTANCE]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || (args[1].equals("zone") && args.length < 4)) {
+            System.out.println("Usage: java TravelTimeMatrix DATA_DIRECTORY (trains | zone NUMBER) OUTPUT_FILE [WALKING_DISTANCE]");
+            return;
+        }
+        Path dataDirectory = Paths.get(args[0]);
+        Map<String, Stop> stopMap = NetworkViewer.loadStops(dataDirectory.resolve("stops.txt"));
+        Collection<Line> lines = NetworkViewer.loadLines(dataDirectory.resolve("lines.txt"), stopMap);
+        Graph graph = new Graph(stopMap.values(), lines, true);
+        boolean byZone = args[1].equals("zone");
+        int next = byZone ? 3 : 2;
+        Path output = Paths.get(args[next]);
+        if (args.length > next + 1) {
+            graph.setWalkingDistance(Double.parseDouble(args[next + 1]));
+        }
+        GraphSnapshot snapshot = graph.freeze();
+        int[] stops = byZone
+            ? stopsInZone(snapshot, new Zoning(dataDirectory.resolve("WellingtonZones.csv")), Integer.parseInt(args[2]))
+            : trainStations(snapshot);
+        TravelTimeMatrix matrix = new TravelTimeMatrix(snapshot, stops, stops);
+        System.out.printf("%d x %d matrix: %.0f sources per second%n",
+                          matrix.numSources(), matrix.numDestinations(), matrix.sourcesPerSecond());
+        matrix.writeCsv(output);
+    }
+}
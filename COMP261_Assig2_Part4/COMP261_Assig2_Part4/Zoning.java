@@ -93,6 +93,16 @@ public class Zoning {
         return shapes;
     }
 
+    // get the number of the zone that a point is in, or -1 if it is not in any zone
+    public int findZone(GisPoint point) {
+        for (Shape zone : shapes.values()) {
+            if (zone.contains(point)) {
+                return zone.getZONE();
+            }
+        }
+        return -1;
+    }
+
 }
 
 // Zone properties
@@ -144,6 +154,16 @@ class Shape {
         return shapes;
     }
 
+    // is the point inside any of the polygons of this zone
+    public boolean contains(GisPoint point) {
+        for (GeoPoly poly : shapes) {
+            if (poly.contains(point)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
 
 // geoJson polygon
@@ -169,4 +189,19 @@ class GeoPoly {
     public void add(GisPoint point) {
         points.add(point);
     }
+
+    // is the point inside the polygon (even-odd rule: count the edges crossed by a ray going east)
+    public boolean contains(GisPoint point) {
+        double x = point.getLon();
+        double y = point.getLat();
+        boolean inside = false;
+        for (int i = 0, j = points.size() - 1; i < points.size(); j = i++) {
+            double xi = points.get(i).getLon(), yi = points.get(i).getLat();
+            double xj = points.get(j).getLon(), yj = points.get(j).getLat();
+            if ((yi > y) != (yj > y) && x < xi + (y - yi) * (xj - xi) / (yj - yi)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
 }